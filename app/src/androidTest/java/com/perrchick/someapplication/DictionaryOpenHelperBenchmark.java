@@ -0,0 +1,124 @@
+package com.perrchick.someapplication;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.perrchick.someapplication.data.DictionaryOpenHelper;
+
+import java.util.HashMap;
+
+/**
+ * Compares the write throughput of a connection per row on a rollback journal (how put() used to write),
+ * a row per transaction on the shared WAL connection and a single transaction for all rows,
+ * and measures the latency of full text searches.
+ * Run it on a device and look for the rows/sec in the log.
+ */
+public class DictionaryOpenHelperBenchmark extends AndroidTestCase {
+    private static final String TAG = DictionaryOpenHelperBenchmark.class.getSimpleName();
+    private static final String KEY_PREFIX = "benchmark_";
+    private static final int ROWS_COUNT = 2000;
+    private static final int SEARCHES_COUNT = 50;
+    // The baseline writes to a database of its own, since the helper's database can't leave WAL mode
+    private static final String BASELINE_DATABASE_NAME = "benchmark_baseline_db";
+
+    private DictionaryOpenHelper dictionaryOpenHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dictionaryOpenHelper = DictionaryOpenHelper.getInstance(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dictionaryOpenHelper.deleteByPrefix(KEY_PREFIX);
+        super.tearDown();
+    }
+
+    public void testPutWithConnectionPerRow() {
+        // The schema of the dictionary before the full text index, in the default (rollback journal) mode
+        String databasePath = getContext().getDatabasePath(BASELINE_DATABASE_NAME).getPath();
+        getContext().deleteDatabase(BASELINE_DATABASE_NAME);
+        SQLiteDatabase schemaDatabase = SQLiteDatabase.openOrCreateDatabase(databasePath, null);
+        schemaDatabase.execSQL("CREATE TABLE dictionary ( Key TEXT PRIMARY KEY, Value TEXT)");
+        schemaDatabase.close();
+
+        try {
+            long startMillis = SystemClock.elapsedRealtime();
+            for (int i = 0; i < ROWS_COUNT; i++) {
+                SQLiteDatabase database = SQLiteDatabase.openDatabase(databasePath, null, SQLiteDatabase.OPEN_READWRITE);
+                try {
+                    ContentValues values = new ContentValues();
+                    values.put("Key", KEY_PREFIX + i);
+                    values.put("Value", "value " + i);
+                    assertTrue(database.insertWithOnConflict("dictionary", null, values, SQLiteDatabase.CONFLICT_REPLACE) != -1);
+                } finally {
+                    database.close();
+                }
+            }
+            logThroughput("baseline (a connection per row, rollback journal)", SystemClock.elapsedRealtime() - startMillis);
+
+            SQLiteDatabase database = SQLiteDatabase.openDatabase(databasePath, null, SQLiteDatabase.OPEN_READONLY);
+            try {
+                assertEquals(ROWS_COUNT, DatabaseUtils.queryNumEntries(database, "dictionary"));
+            } finally {
+                database.close();
+            }
+        } finally {
+            getContext().deleteDatabase(BASELINE_DATABASE_NAME);
+        }
+    }
+
+    public void testPutRowByRow() {
+        long startMillis = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ROWS_COUNT; i++) {
+            assertTrue(dictionaryOpenHelper.put(KEY_PREFIX + i, "value " + i) != -1);
+        }
+        logThroughput("put (a transaction per row)", SystemClock.elapsedRealtime() - startMillis);
+
+        assertEquals("value 0", dictionaryOpenHelper.get(KEY_PREFIX + 0, null));
+    }
+
+    public void testPutAll() {
+        HashMap<String, String> keysAndValues = new HashMap<>(ROWS_COUNT);
+        for (int i = 0; i < ROWS_COUNT; i++) {
+            keysAndValues.put(KEY_PREFIX + i, "value " + i);
+        }
+
+        long startMillis = SystemClock.elapsedRealtime();
+        assertEquals(ROWS_COUNT, dictionaryOpenHelper.putAll(keysAndValues));
+        logThroughput("putAll (a single transaction)", SystemClock.elapsedRealtime() - startMillis);
+
+        assertEquals("value " + (ROWS_COUNT - 1), dictionaryOpenHelper.get(KEY_PREFIX + (ROWS_COUNT - 1), null));
+    }
+
+    public void testSearch() {
+        // Every row has the common word, one of every hundred rows has the rare word
+        HashMap<String, String> keysAndValues = new HashMap<>(ROWS_COUNT);
+        for (int i = 0; i < ROWS_COUNT; i++) {
+            keysAndValues.put(KEY_PREFIX + i, "common value " + i + (i % 100 == 0 ? " rare" : "") + (i % 3 == 0 ? " common" : ""));
+        }
+        assertEquals(ROWS_COUNT, dictionaryOpenHelper.putAll(keysAndValues));
+
+        logSearchLatency("common", ROWS_COUNT);
+        logSearchLatency("rare", ROWS_COUNT / 100);
+        logSearchLatency("comm*", ROWS_COUNT);
+    }
+
+    private void logSearchLatency(String query, int matchesCount) {
+        long startMillis = SystemClock.elapsedRealtime();
+        for (int i = 0; i < SEARCHES_COUNT; i++) {
+            assertFalse(dictionaryOpenHelper.search(query, 20).isEmpty());
+        }
+        long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+        Log.v(TAG, "search '" + query + "' (about " + matchesCount + " matches): " + (elapsedMillis / (float) SEARCHES_COUNT) + " ms per search");
+    }
+
+    private static void logThroughput(String method, long elapsedMillis) {
+        Log.v(TAG, method + ": " + ROWS_COUNT + " rows in " + elapsedMillis + " ms, " + (ROWS_COUNT * 1000L / Math.max(1, elapsedMillis)) + " rows/sec");
+    }
+}
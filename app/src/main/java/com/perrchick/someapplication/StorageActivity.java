@@ -101,7 +101,7 @@ public class StorageActivity extends AppCompatActivity implements SyncedSharedPr
         // Also 'this' may be passed as context
         this.db_backendlessSharedPreferences = OnlineSharedPreferences.getOnlineSharedPreferences(this);
         this.db_firebaseSharedPreferences = SyncedSharedPreferences.getSyncedSharedPreferences(this, this);
-        this.db_sqLiteHelper = new DictionaryOpenHelper(this);
+        this.db_sqLiteHelper = DictionaryOpenHelper.getInstance(this);
 
         this.editTextSharedPrefs = (EditText) findViewById(R.id.txt_shared_prefs);
         this.editTextSQLite = (EditText) findViewById(R.id.txt_sqlite);
@@ -372,7 +372,8 @@ public class StorageActivity extends AppCompatActivity implements SyncedSharedPr
 
     @Override
     public void onSyncedSharedPreferencesError(FirebaseError error) {
-        // Reconnect?
+        // SyncedSharedPreferences reconnects by itself
+        Log.e(TAG, "Firebase error: " + error.getMessage());
     }
 
     protected void saveInBackendlessCloud(String key, String value, OnlineSharedPreferences.CommitCallback saveCallback) {
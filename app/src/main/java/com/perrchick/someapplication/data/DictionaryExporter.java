@@ -0,0 +1,56 @@
+package com.perrchick.someapplication.data;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Streams the whole dictionary into a file, a page of rows at a time. Pages are read by key (after the last key
+ * of the previous page), so every page is a short index range scan and only one page is in memory at a time.
+ */
+public class DictionaryExporter {
+    private static final int PAGE_SIZE = 1000;
+
+    private final DictionaryOpenHelper dictionaryOpenHelper;
+
+    public DictionaryExporter(Context context) {
+        this.dictionaryOpenHelper = DictionaryOpenHelper.getInstance(context);
+    }
+
+    /**
+     * Writes all the rows, ordered by key, a row per line. Blocking, call it from a background thread.
+     * Rows that are written during the export may or may not be included.
+     *
+     * @param outputStream Where to write to, it's flushed but not closed
+     * @param format       The format of the lines, the importer reads it back
+     * @return How many rows were exported
+     */
+    public long export(OutputStream outputStream, DictionaryFormat format) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+        long rowsExported = 0;
+        String lastKey = null;
+        int pageRowsCount;
+        do {
+            Cursor cursor = dictionaryOpenHelper.getRowsAfter(lastKey, PAGE_SIZE);
+            try {
+                pageRowsCount = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastKey = cursor.getString(0);
+                    writer.write(format.formatLine(lastKey, cursor.getString(1)));
+                    writer.write('\n');
+                }
+            } finally {
+                cursor.close();
+            }
+            rowsExported += pageRowsCount;
+        } while (pageRowsCount == PAGE_SIZE);
+        writer.flush();
+
+        return rowsExported;
+    }
+}
@@ -0,0 +1,124 @@
+package com.perrchick.someapplication.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * The line formats of dictionary files, a row per line.
+ */
+public enum DictionaryFormat {
+    /**
+     * key&lt;TAB&gt;value, where tabs, line breaks and backslashes are escaped as \t, \n, \r and \\, and NULL is \N
+     */
+    TSV {
+        @Override
+        String[] parseLine(String line) {
+            int tabIndex = line.indexOf('\t');
+            if (tabIndex < 0) {
+                throw new IllegalArgumentException("No tab in line: " + line);
+            }
+            String key = unescape(line.substring(0, tabIndex));
+            if (key == null) {
+                throw new IllegalArgumentException("No key in line: " + line);
+            }
+
+            return new String[]{key, unescape(line.substring(tabIndex + 1))};
+        }
+
+        @Override
+        String formatLine(String key, String value) {
+            return escape(key) + "\t" + escape(value);
+        }
+    },
+
+    /**
+     * {"key": ..., "value": ...}
+     */
+    JSON_LINES {
+        @Override
+        String[] parseLine(String line) {
+            try {
+                JsonObject row = new JsonParser().parse(line).getAsJsonObject();
+                JsonElement key = row.get("key");
+                JsonElement value = row.get("value");
+                if (key == null || key.isJsonNull()) {
+                    throw new IllegalArgumentException("No key in line: " + line);
+                }
+                return new String[]{key.getAsString(), value == null || value.isJsonNull() ? null : value.getAsString()};
+            } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+                throw new IllegalArgumentException("Not a dictionary row: " + line, e);
+            }
+        }
+
+        @Override
+        String formatLine(String key, String value) {
+            JsonObject row = new JsonObject();
+            row.addProperty("key", key);
+            row.addProperty("value", value);
+
+            return row.toString();
+        }
+    };
+
+    /**
+     * @return {key, value}
+     * @throws IllegalArgumentException if the line isn't a row of this format
+     */
+    abstract String[] parseLine(String line);
+
+    /**
+     * @return The row as a single line, without the line break
+     */
+    abstract String formatLine(String key, String value);
+
+    private static final String NULL = "\\N";
+
+    private static String escape(String string) {
+        if (string == null) {
+            return NULL;
+        }
+
+        StringBuilder escaped = new StringBuilder(string.length());
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                default: escaped.append(c);
+            }
+        }
+
+        return escaped.toString();
+    }
+
+    private static String unescape(String string) {
+        if (string.equals(NULL)) {
+            return null;
+        }
+        if (string.indexOf('\\') < 0) {
+            return string;
+        }
+
+        StringBuilder unescaped = new StringBuilder(string.length());
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c != '\\' || i == string.length() - 1) {
+                unescaped.append(c);
+                continue;
+            }
+            char escapedChar = string.charAt(++i);
+            switch (escapedChar) {
+                case 't': unescaped.append('\t'); break;
+                case 'n': unescaped.append('\n'); break;
+                case 'r': unescaped.append('\r'); break;
+                default: unescaped.append(escapedChar);
+            }
+        }
+
+        return unescaped.toString();
+    }
+}
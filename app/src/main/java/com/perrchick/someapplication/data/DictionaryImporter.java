@@ -0,0 +1,164 @@
+package com.perrchick.someapplication.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams a dictionary file into the database, a chunk of rows per transaction, so the memory it takes doesn't depend
+ * on the file's size. After every chunk, the position in the file is saved, so an import that was interrupted
+ * (i.e. the process was killed) resumes from the last committed chunk. Rows are upserted, so a chunk that's
+ * imported twice leaves the same rows.
+ */
+public class DictionaryImporter {
+    private static final String TAG = DictionaryImporter.class.getSimpleName();
+    private static final String CHARSET = "UTF-8";
+    private static final int DEFAULT_CHUNK_SIZE = 5000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public interface ProgressListener {
+        /**
+         * Called after every committed chunk, on the importing thread
+         * @param bytesRead      How much of the file was imported
+         * @param totalBytes     The file's size
+         * @param rowsImported   How many rows were imported by this call (not counting the ones before resuming)
+         */
+        void onProgress(long bytesRead, long totalBytes, long rowsImported);
+    }
+
+    /**
+     * Where the chunks are written to
+     */
+    interface ChunkWriter {
+        /**
+         * @return The number of rows that were put, all or nothing
+         */
+        int putAll(Map<String, String> keysAndValues);
+    }
+
+    private final ChunkWriter chunkWriter;
+    // File -> where its import has stopped
+    private final SharedPreferences checkpoints;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    public DictionaryImporter(final Context context) {
+        this(new ChunkWriter() {
+            private final DictionaryOpenHelper dictionaryOpenHelper = DictionaryOpenHelper.getInstance(context);
+
+            @Override
+            public int putAll(Map<String, String> keysAndValues) {
+                return dictionaryOpenHelper.putAll(keysAndValues);
+            }
+        }, context.getSharedPreferences(DictionaryImporter.class.getSimpleName(), Context.MODE_PRIVATE));
+    }
+
+    DictionaryImporter(ChunkWriter chunkWriter, SharedPreferences checkpoints) {
+        this.chunkWriter = chunkWriter;
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * @param chunkSize How many rows are committed in each transaction
+     */
+    public DictionaryImporter setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Imports the file, from where its last import has stopped. Blocking, call it from a background thread.
+     *
+     * @param file     The dictionary file, a row per line
+     * @param format   The format of the lines
+     * @param listener Gets the progress, may be null
+     * @return How many rows were imported by this call
+     * @throws IOException if the file can't be read, or a chunk can't be written (the import may be resumed later)
+     */
+    public long importFile(File file, DictionaryFormat format, ProgressListener listener) throws IOException {
+        // A file that was changed since is imported from its start
+        String checkpointKey = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        long position = checkpoints.getLong(checkpointKey, 0);
+        if (position > 0) {
+            Log.v(TAG, "Resuming the import of " + file + " from byte " + position);
+        }
+
+        FileInputStream fileInputStream = new FileInputStream(file);
+        long rowsImported = 0;
+        try {
+            fileInputStream.getChannel().position(position);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bufferStart = 0;
+            int bufferEnd = 0;
+            ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+            HashMap<String, String> chunk = new HashMap<>(chunkSize);
+
+            long lineNumber = 0;
+            boolean isEndOfFile = false;
+            while (!isEndOfFile) {
+                // Lines are read as bytes, so the position in the file is known exactly
+                lineBytes.reset();
+                boolean isEndOfLine = false;
+                while (!isEndOfLine) {
+                    if (bufferStart == bufferEnd) {
+                        bufferStart = 0;
+                        bufferEnd = fileInputStream.read(buffer);
+                        if (bufferEnd == -1) {
+                            bufferEnd = 0;
+                            isEndOfFile = true;
+                            break;
+                        }
+                    }
+                    int lineEnd = bufferStart;
+                    while (lineEnd < bufferEnd && buffer[lineEnd] != '\n') {
+                        lineEnd++;
+                    }
+                    lineBytes.write(buffer, bufferStart, lineEnd - bufferStart);
+                    isEndOfLine = lineEnd < bufferEnd;
+                    bufferStart = isEndOfLine ? lineEnd + 1 : lineEnd;
+                }
+                position += lineBytes.size() + (isEndOfLine ? 1 : 0);
+                lineNumber++;
+
+                String line = lineBytes.toString(CHARSET);
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                if (!line.isEmpty()) {
+                    try {
+                        String[] keyAndValue = format.parseLine(line);
+                        chunk.put(keyAndValue[0], keyAndValue[1]);
+                    } catch (IllegalArgumentException e) {
+                        Log.e(TAG, "Skipping line " + lineNumber + " (counted from where this import started) of " + file + ": " + e.getMessage());
+                    }
+                }
+
+                if (chunk.size() >= chunkSize || (isEndOfFile && !chunk.isEmpty())) {
+                    if (chunkWriter.putAll(chunk) != chunk.size()) {
+                        throw new IOException("Failed to write rows of " + file + ", stopped at byte " + position);
+                    }
+                    rowsImported += chunk.size();
+                    chunk.clear();
+                    // Saved after the commit, at worst the last chunk is imported again
+                    checkpoints.edit().putLong(checkpointKey, position).commit();
+                    if (listener != null) {
+                        listener.onProgress(position, file.length(), rowsImported);
+                    }
+                }
+            }
+        } finally {
+            fileInputStream.close();
+        }
+
+        checkpoints.edit().remove(checkpointKey).commit();
+        Log.v(TAG, "Imported " + rowsImported + " rows from " + file);
+
+        return rowsImported;
+    }
+}
@@ -3,22 +3,100 @@ package com.perrchick.someapplication.data;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.perrchick.someapplication.R;
 import com.perrchick.someapplication.StorageActivity;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Created by perrchick on 11/17/15.
  */
 public class DictionaryOpenHelper extends SQLiteOpenHelper {
-    private static final int DATABASE_VERSION = 2;
+    private static final String TAG = DictionaryOpenHelper.class.getSimpleName();
+    private static final int DATABASE_VERSION = 3;
     private static final String DICTIONARY_TABLE_NAME = "dictionary";
+    // A full text index of the values, its rows are the dictionary's rows (by rowid) and it keeps no copy of their content
+    private static final String DICTIONARY_FTS_TABLE_NAME = "dictionary_fts";
+    // Exists while the full text index of an upgraded database hasn't been built yet, its row is the last indexed rowid
+    private static final String DICTIONARY_FTS_REBUILD_TABLE_NAME = "dictionary_fts_rebuild_pending";
+    // The rows that are indexed by each transaction of the rebuild, the writes wait for one chunk at most
+    private static final int FTS_REBUILD_CHUNK_ROWS = 500;
+    // A search ranks only this many of its matches (the first ones by rowid), so its cost doesn't grow with the dictionary
+    private static final int SEARCH_MAX_CANDIDATES = 1000;
+    private static final int CACHE_MAX_ENTRIES = 512;
+    // The columns that may be queried, _id is the row's id for cursor adapters
+    private static final HashMap<String, String> COLUMNS = new HashMap<>();
+
+    static {
+        COLUMNS.put("_id", "rowid AS _id");
+        COLUMNS.put("Key", "Key");
+        COLUMNS.put("Value", "Value");
+    }
+    private static DictionaryOpenHelper instance;
+    // Builds the full text index of an upgraded database, off the thread that opened it
+    private static final ExecutorService ftsRebuildExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, DICTIONARY_FTS_TABLE_NAME + "_rebuild");
+        }
+    });
+    // The one connection of the whole process, opened once and never closed
     private SQLiteDatabase dataBase;
+    // Compiled once and reused, a statement may be used by one thread at a time (the write statements are guarded by the write lock)
+    private SQLiteStatement getStatement;
+    private SQLiteStatement putStatement;
+    private SQLiteStatement updateStatement;
+    private SQLiteStatement deleteStatement;
+    // Taken by every write before it gets to the database, so a thread that waits for the database never holds a statement
+    // that the transaction's thread needs (the writes of a transaction happen while its thread holds this lock)
+    private final Object writeLock = new Object();
+    // Key -> its value (or that it's missing), the most recently read rows
+    private final LruCache<String, CachedValue> cache = new LruCache<>(CACHE_MAX_ENTRIES);
+    // Increases on every write, a value that was read during a write isn't cached (it may be stale already)
+    private long writesCount;
+
+    private static class CachedValue {
+        private static final CachedValue MISSING = new CachedValue(null);
+
+        private final String value;
+
+        private CachedValue(String value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Gets the shared instance, all the app's components use the same connection
+     * @param context Any context, only its application context is kept
+     * @return The shared DictionaryOpenHelper
+     */
+    public static synchronized DictionaryOpenHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new DictionaryOpenHelper(context.getApplicationContext());
+        }
 
-    public DictionaryOpenHelper(Context context) {
+        return instance;
+    }
+
+    private DictionaryOpenHelper(Context context) {
         // The reason of passing null is you want the standard SQLiteCursor behaviour
         super(context, context.getResources().getString(R.string.app_name) + "_db", null, DATABASE_VERSION);
     }
@@ -27,25 +105,164 @@ public class DictionaryOpenHelper extends SQLiteOpenHelper {
         return "CREATE TABLE " + DICTIONARY_TABLE_NAME + " ( " + KEY_WORD + " TEXT PRIMARY KEY, " + KEY_DEFINITION + " TEXT)";
     }
 
+    private void createFullTextIndex(SQLiteDatabase db, boolean isRebuilding) {
+        db.execSQL("CREATE VIRTUAL TABLE " + DICTIONARY_FTS_TABLE_NAME + " USING fts4(content=\"" + DICTIONARY_TABLE_NAME + "\", Value)");
+        createFullTextTriggers(db, isRebuilding);
+    }
+
+    /**
+     * Keeps the index in sync with every write, whichever way it was made.
+     *
+     * @param isRebuilding If true, only the rows that the rebuild has indexed already are kept in sync
+     *                     (the rest are indexed by the rebuild, as they are when it gets to them)
+     */
+    private void createFullTextTriggers(SQLiteDatabase db, boolean isRebuilding) {
+        String oldRowCondition = isRebuilding ? " WHEN old.rowid <= (SELECT last_rowid FROM " + DICTIONARY_FTS_REBUILD_TABLE_NAME + ")" : "";
+        String newRowCondition = isRebuilding ? " WHEN new.rowid <= (SELECT last_rowid FROM " + DICTIONARY_FTS_REBUILD_TABLE_NAME + ")" : "";
+        db.execSQL("CREATE TRIGGER dictionary_fts_before_delete BEFORE DELETE ON " + DICTIONARY_TABLE_NAME + oldRowCondition + " BEGIN " +
+                "DELETE FROM " + DICTIONARY_FTS_TABLE_NAME + " WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER dictionary_fts_before_update BEFORE UPDATE ON " + DICTIONARY_TABLE_NAME + oldRowCondition + " BEGIN " +
+                "DELETE FROM " + DICTIONARY_FTS_TABLE_NAME + " WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER dictionary_fts_after_update AFTER UPDATE ON " + DICTIONARY_TABLE_NAME + newRowCondition + " BEGIN " +
+                "INSERT INTO " + DICTIONARY_FTS_TABLE_NAME + " (docid, Value) VALUES (new.rowid, new.Value); END");
+        db.execSQL("CREATE TRIGGER dictionary_fts_after_insert AFTER INSERT ON " + DICTIONARY_TABLE_NAME + newRowCondition + " BEGIN " +
+                "INSERT INTO " + DICTIONARY_FTS_TABLE_NAME + " (docid, Value) VALUES (new.rowid, new.Value); END");
+    }
+
+    private void dropFullTextTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER dictionary_fts_before_delete");
+        db.execSQL("DROP TRIGGER dictionary_fts_before_update");
+        db.execSQL("DROP TRIGGER dictionary_fts_after_update");
+        db.execSQL("DROP TRIGGER dictionary_fts_after_insert");
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Readers don't block the writer (and vice versa), and a commit appends to the log instead of rewriting pages
+        db.enableWriteAheadLogging();
+        // Otherwise a row that's replaced (INSERT OR REPLACE) is deleted without its delete trigger, and stays in the full text index
+        db.execSQL("PRAGMA recursive_triggers = ON");
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(DICTIONARY_TABLE_CREATE("Key", "Value"));
-        this.dataBase = db;
+        createFullTextIndex(db, false);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 3) {
+            // The existing rows are indexed in the background after the open, it may be the main thread that opens the database
+            db.execSQL("CREATE TABLE " + DICTIONARY_FTS_REBUILD_TABLE_NAME + " (last_rowid INTEGER)");
+            db.execSQL("INSERT INTO " + DICTIONARY_FTS_REBUILD_TABLE_NAME + " (last_rowid) VALUES (0)");
+            createFullTextIndex(db, true);
+        }
     }
 
-    public long put(ContentValues values) {
-        long rowId;
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' AND name = ?", new String[]{DICTIONARY_FTS_REBUILD_TABLE_NAME}) > 0) {
+            ftsRebuildExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    rebuildFullTextIndex();
+                }
+            });
+        }
+    }
+
+    /**
+     * Indexes the rows that were written before there was an index, in order of rowid. Until it's done, searches miss these rows.
+     * Every chunk is a transaction of its own and the write lock is released between them, so the writes don't wait for the whole
+     * dictionary. If it's interrupted, it goes on from the last committed chunk on the next open.
+     */
+    private void rebuildFullTextIndex() {
+        SQLiteDatabase database = getDatabase();
+        long startMillis = System.currentTimeMillis();
+        boolean isDone = false;
+        while (!isDone) {
+            synchronized (writeLock) {
+                database.beginTransaction();
+                try {
+                    isDone = indexNextChunk(database);
+                    database.setTransactionSuccessful();
+                } catch (SQLException e) {
+                    Log.e(TAG, "Failed to rebuild the full text index: " + e);
+                    return;
+                } finally {
+                    database.endTransaction();
+                }
+            }
+        }
+        Log.v(TAG, "Rebuilt the full text index in " + (System.currentTimeMillis() - startMillis) + " ms");
+    }
 
-        SQLiteDatabase database = this.getWritableDatabase();
+    /**
+     * Indexes the next {@value #FTS_REBUILD_CHUNK_ROWS} rows, must be called in a transaction.
+     * The chunk that reaches the last row also switches to the regular triggers, in the same transaction, so the rows that
+     * are added in the meantime can't keep the rebuild going.
+     *
+     * @return true if the whole dictionary is indexed
+     */
+    private boolean indexNextChunk(SQLiteDatabase database) {
+        long lastRowId = DatabaseUtils.longForQuery(database, "SELECT last_rowid FROM " + DICTIONARY_FTS_REBUILD_TABLE_NAME, null);
+        long rowsCount;
+        long chunkLastRowId;
+        Cursor cursor = database.rawQuery("SELECT count(*), max(chunk_rowid) FROM (SELECT rowid AS chunk_rowid FROM " + DICTIONARY_TABLE_NAME +
+                " WHERE rowid > ? ORDER BY rowid LIMIT " + FTS_REBUILD_CHUNK_ROWS + ")", new String[]{String.valueOf(lastRowId)});
+        try {
+            cursor.moveToFirst();
+            rowsCount = cursor.getLong(0);
+            chunkLastRowId = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        if (rowsCount > 0) {
+            database.execSQL("INSERT INTO " + DICTIONARY_FTS_TABLE_NAME + " (docid, Value) SELECT rowid, Value FROM " + DICTIONARY_TABLE_NAME +
+                    " WHERE rowid > ? AND rowid <= ?", new Object[]{lastRowId, chunkLastRowId});
+            database.execSQL("UPDATE " + DICTIONARY_FTS_REBUILD_TABLE_NAME + " SET last_rowid = ?", new Object[]{chunkLastRowId});
+        }
+        if (rowsCount < FTS_REBUILD_CHUNK_ROWS) {
+            dropFullTextTriggers(database);
+            createFullTextTriggers(database, false);
+            database.execSQL("DROP TABLE " + DICTIONARY_FTS_REBUILD_TABLE_NAME);
+            return true;
+        }
+
+        return false;
+    }
 
-        rowId = database.insertWithOnConflict(DICTIONARY_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
-        database.close();
+    private synchronized SQLiteDatabase getDatabase() {
+        if (dataBase == null) {
+            dataBase = getWritableDatabase();
+            getStatement = dataBase.compileStatement("SELECT Value FROM " + DICTIONARY_TABLE_NAME + " WHERE Key = ?");
+            putStatement = dataBase.compileStatement("INSERT OR REPLACE INTO " + DICTIONARY_TABLE_NAME + " (Key, Value) VALUES (?, ?)");
+            updateStatement = dataBase.compileStatement("UPDATE " + DICTIONARY_TABLE_NAME + " SET Value = ? WHERE Key = ?");
+            deleteStatement = dataBase.compileStatement("DELETE FROM " + DICTIONARY_TABLE_NAME + " WHERE Key = ?");
+        }
 
-        return rowId;
+        return dataBase;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    public long put(ContentValues values) {
+        SQLiteDatabase database = getDatabase();
+        synchronized (writeLock) {
+            try {
+                return database.insertWithOnConflict(DICTIONARY_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            } finally {
+                invalidate(values.getAsString("Key"));
+            }
+        }
     }
 
     /**
@@ -55,29 +272,477 @@ public class DictionaryOpenHelper extends SQLiteOpenHelper {
      * OR -1 if any error
      */
     public long put(String key, String value) {
-        ContentValues values = new ContentValues();
-        values.put("Key", key);
-        values.put("Value", value);
+        getDatabase();
+        synchronized (writeLock) {
+            try {
+                putStatement.bindString(1, key);
+                bindStringOrNull(putStatement, 2, value);
+                return putStatement.executeInsert();
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to put '" + key + "': " + e);
+                return -1;
+            } finally {
+                putStatement.clearBindings();
+                invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Deletes a row.
+     *
+     * @return true if the key was found and deleted, false if it wasn't or the delete has failed
+     */
+    public boolean delete(String key) {
+        getDatabase();
+        synchronized (writeLock) {
+            try {
+                deleteStatement.bindString(1, key);
+                return deleteStatement.executeUpdateDelete() > 0;
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to delete '" + key + "': " + e);
+                return false;
+            } finally {
+                deleteStatement.clearBindings();
+                invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Deletes every row whose key starts with the prefix, in a single statement.
+     *
+     * @param prefix The prefix of the keys
+     * @return The number of rows that were deleted
+     */
+    public int deleteByPrefix(String prefix) {
+        StringBuilder whereClause = new StringBuilder("Key >= ? AND substr(Key, 1, ?) = ?");
+        ArrayList<String> whereArgs = new ArrayList<>(4);
+        whereArgs.add(prefix);
+        whereArgs.add(String.valueOf(prefix.codePointCount(0, prefix.length())));
+        whereArgs.add(prefix);
+        String upperBound = prefixUpperBound(prefix);
+        if (upperBound != null) {
+            whereClause.append(" AND Key < ?");
+            whereArgs.add(upperBound);
+        }
+
+        SQLiteDatabase database = getDatabase();
+        synchronized (writeLock) {
+            try {
+                return database.delete(DICTIONARY_TABLE_NAME, whereClause.toString(), whereArgs.toArray(new String[whereArgs.size()]));
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to delete the keys of '" + prefix + "': " + e);
+                return 0;
+            } finally {
+                invalidateAll();
+            }
+        }
+    }
+
+    /**
+     * Updates the value of an existing row.
+     *
+     * @return true if the key was found and updated, false if it wasn't or the update has failed
+     */
+    public boolean update(String key, String value) {
+        getDatabase();
+        synchronized (writeLock) {
+            try {
+                bindStringOrNull(updateStatement, 1, value);
+                updateStatement.bindString(2, key);
+                return updateStatement.executeUpdateDelete() > 0;
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to update '" + key + "': " + e);
+                return false;
+            } finally {
+                updateStatement.clearBindings();
+                invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Deletes the rows that match the selection.
+     *
+     * @param selection     A WHERE clause of the columns (Key, Value), null for all the rows
+     * @param selectionArgs The arguments of the selection, may be null
+     * @return The number of rows that were deleted
+     */
+    int delete(String selection, String[] selectionArgs) {
+        SQLiteDatabase database = getDatabase();
+        synchronized (writeLock) {
+            try {
+                // "1" makes SQLite count the deleted rows of a delete without a WHERE clause
+                return database.delete(DICTIONARY_TABLE_NAME, selection == null ? "1" : selection, selectionArgs);
+            } finally {
+                invalidateAll();
+            }
+        }
+    }
+
+    /**
+     * Updates the rows that match the selection.
+     *
+     * @param values        The columns (Key, Value) to set
+     * @param selection     A WHERE clause of the columns (Key, Value), null for all the rows
+     * @param selectionArgs The arguments of the selection, may be null
+     * @return The number of rows that were updated
+     */
+    int update(ContentValues values, String selection, String[] selectionArgs) {
+        SQLiteDatabase database = getDatabase();
+        synchronized (writeLock) {
+            try {
+                return database.update(DICTIONARY_TABLE_NAME, values, selection, selectionArgs);
+            } finally {
+                invalidateAll();
+            }
+        }
+    }
 
-        return this.put(values);
+    /**
+     * Runs many writes (of this helper) in a single transaction, so they're committed (and synced to the disk) once.
+     * If the writes throw, none of them is committed.
+     *
+     * @param writes The writes, they're called on this thread
+     * @return What the writes have returned
+     */
+    public <T> T runInTransaction(Callable<T> writes) throws Exception {
+        SQLiteDatabase database = getDatabase();
+        synchronized (writeLock) {
+            database.beginTransaction();
+            try {
+                T result = writes.call();
+                database.setTransactionSuccessful();
+                return result;
+            } finally {
+                database.endTransaction();
+                // The writes have invalidated their keys before the commit, the values that were cached since may be stale
+                invalidateAll();
+            }
+        }
     }
 
+    /**
+     * Inserts (or replaces) many rows in a single transaction, so they're committed (and synced to the disk) once.
+     *
+     * @param keysAndValues The rows to put
+     * @return The number of rows that were put, all or nothing
+     */
+    public int putAll(Map<String, String> keysAndValues) {
+        SQLiteDatabase database = getDatabase();
+        synchronized (writeLock) {
+            database.beginTransaction();
+            try {
+                for (Map.Entry<String, String> keyAndValue : keysAndValues.entrySet()) {
+                    putStatement.bindString(1, keyAndValue.getKey());
+                    bindStringOrNull(putStatement, 2, keyAndValue.getValue());
+                    putStatement.executeInsert();
+                }
+                database.setTransactionSuccessful();
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to put " + keysAndValues.size() + " rows: " + e);
+                return 0;
+            } finally {
+                database.endTransaction();
+                putStatement.clearBindings();
+                invalidateAll();
+            }
+        }
+
+        return keysAndValues.size();
+    }
+
+    /**
+     * Gets a single value, from the cache or through a compiled statement (without a cursor).
+     *
+     * @return The value, or the default value if the key is missing
+     */
     public String get(String key, String defaultValue) {
-        String returnValue = defaultValue;
-        Cursor cursor = getCursor(key);
+        // A null key is looked up as "null", like getCursor() does
+        key = String.valueOf(key);
+        CachedValue cachedValue = cache.get(key);
+        if (cachedValue == null) {
+            cachedValue = read(key);
+        }
+
+        return cachedValue == CachedValue.MISSING ? defaultValue : cachedValue.value;
+    }
+
+    private CachedValue read(String key) {
+        getDatabase();
+        long writesCountBeforeRead;
+        synchronized (this) {
+            writesCountBeforeRead = writesCount;
+        }
+
+        CachedValue cachedValue;
+        synchronized (getStatement) {
+            try {
+                getStatement.bindString(1, key);
+                cachedValue = new CachedValue(getStatement.simpleQueryForString());
+            } catch (SQLiteDoneException e) {
+                // No such row
+                cachedValue = CachedValue.MISSING;
+            } finally {
+                getStatement.clearBindings();
+            }
+        }
+
+        synchronized (this) {
+            if (writesCount == writesCountBeforeRead) {
+                cache.put(key, cachedValue);
+            }
+        }
+
+        return cachedValue;
+    }
+
+    private synchronized void invalidate(String key) {
+        writesCount++;
+        if (key == null) {
+            cache.evictAll();
+        } else {
+            cache.remove(key);
+        }
+    }
+
+    private synchronized void invalidateAll() {
+        writesCount++;
+        cache.evictAll();
+    }
+
+    /**
+     * @return How many reads were served by the cache (including missing keys)
+     */
+    public int getCacheHitCount() {
+        return cache.hitCount();
+    }
+
+    /**
+     * @return How many reads went to the database
+     */
+    public int getCacheMissCount() {
+        return cache.missCount();
+    }
+
+    /**
+     * @return How many values were dropped from the cache, to make room for others or by a bulk write
+     */
+    public int getCacheEvictionCount() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * Gets the first rows whose keys start with the prefix, ordered by key (i.e. for autocomplete).
+     * The keys are looked up as a range of the primary key's index, not scanned with LIKE.
+     *
+     * @param prefix The prefix of the keys
+     * @param limit  The maximum number of rows
+     * @return Key -> value, ordered by key
+     * @throws IllegalArgumentException if the limit isn't positive
+     */
+    public Map<String, String> getByPrefix(String prefix, int limit) {
+        return getByPrefix(prefix, null, limit);
+    }
+
+    /**
+     * Gets the next page of rows whose keys start with the prefix, ordered by key.
+     *
+     * @param prefix   The prefix of the keys
+     * @param afterKey The last key of the previous page, null for the first page
+     * @param limit    The page's size
+     * @return Key -> value, ordered by key
+     * @throws IllegalArgumentException if the limit isn't positive
+     */
+    public Map<String, String> getByPrefix(String prefix, String afterKey, int limit) {
+        // Every key that starts with the prefix is in [prefix, upper bound)
+        if (afterKey == null || afterKey.compareTo(prefix) < 0) {
+            return queryRange(prefix, true, prefixUpperBound(prefix), prefix, limit);
+        }
+
+        return queryRange(afterKey, false, prefixUpperBound(prefix), prefix, limit);
+    }
+
+    /**
+     * Gets the first rows whose keys are in [fromKey, toKey), ordered by key.
+     *
+     * @param fromKey The first key (inclusive), null for no lower bound
+     * @param toKey   The upper bound (exclusive), null for no upper bound
+     * @param limit   The maximum number of rows
+     * @return Key -> value, ordered by key
+     * @throws IllegalArgumentException if the limit isn't positive
+     */
+    public Map<String, String> getRange(String fromKey, String toKey, int limit) {
+        return queryRange(fromKey, true, toKey, null, limit);
+    }
+
+    /**
+     * Gets the next page of rows whose keys are in [fromKey, toKey), ordered by key.
+     *
+     * @param fromKey  The first key (inclusive), null for no lower bound
+     * @param toKey    The upper bound (exclusive), null for no upper bound
+     * @param afterKey The last key of the previous page, null for the first page
+     * @param limit    The page's size
+     * @return Key -> value, ordered by key
+     * @throws IllegalArgumentException if the limit isn't positive
+     */
+    public Map<String, String> getRange(String fromKey, String toKey, String afterKey, int limit) {
+        if (afterKey == null || (fromKey != null && afterKey.compareTo(fromKey) < 0)) {
+            return queryRange(fromKey, true, toKey, null, limit);
+        }
+
+        return queryRange(afterKey, false, toKey, null, limit);
+    }
+
+    /**
+     * Selects a range of the primary key, so SQLite seeks its index to the lower bound and stops at the upper bound.
+     *
+     * @param prefix If not null, the keys must also start with it (in case the upper bound is broader than the prefix)
+     */
+    private Map<String, String> queryRange(String lowerBound, boolean isLowerBoundInclusive, String upperBound, String prefix, int limit) {
+        checkLimit(limit);
+        StringBuilder selectQuery = new StringBuilder("SELECT Key, Value FROM " + DICTIONARY_TABLE_NAME + " WHERE 1");
+        ArrayList<String> selectionArgs = new ArrayList<>(4);
+        if (lowerBound != null) {
+            selectQuery.append(isLowerBoundInclusive ? " AND Key >= ?" : " AND Key > ?");
+            selectionArgs.add(lowerBound);
+        }
+        if (upperBound != null) {
+            selectQuery.append(" AND Key < ?");
+            selectionArgs.add(upperBound);
+        }
+        if (prefix != null) {
+            selectQuery.append(" AND substr(Key, 1, ?) = ?");
+            selectionArgs.add(String.valueOf(prefix.codePointCount(0, prefix.length())));
+            selectionArgs.add(prefix);
+        }
+        selectQuery.append(" ORDER BY Key LIMIT ").append(limit);
+
+        LinkedHashMap<String, String> keysAndValues = new LinkedHashMap<>();
+        Cursor cursor = getDatabase().rawQuery(selectQuery.toString(), selectionArgs.toArray(new String[selectionArgs.size()]));
+        try {
+            while (cursor.moveToNext()) {
+                keysAndValues.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return keysAndValues;
+    }
+
+    /**
+     * A LIMIT that isn't positive would return nothing (0) or every row (negative), neither is a page.
+     */
+    private static void checkLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("The limit must be positive, it's " + limit);
+        }
+    }
+
+    /**
+     * @return The smallest string that's greater than every string that starts with the prefix, null if there's none
+     */
+    private static String prefixUpperBound(String prefix) {
+        StringBuilder upperBound = new StringBuilder(prefix);
+        while (upperBound.length() > 0) {
+            char lastChar = upperBound.charAt(upperBound.length() - 1);
+            upperBound.setLength(upperBound.length() - 1);
+            // Surrogates (and the last character) can't simply be incremented, the bound becomes broader (the prefix condition filters the rest)
+            if (lastChar < Character.MIN_SURROGATE - 1 || (lastChar > Character.MAX_SURROGATE && lastChar < Character.MAX_VALUE)) {
+                return upperBound.append((char) (lastChar + 1)).toString();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Searches the values through the full text index.
+     * Results are ranked by how many times the query's terms appear in the value, and then by the value's length.
+     * Only the first {@value #SEARCH_MAX_CANDIDATES} matches (by rowid) are ranked, a query that matches more rows than that
+     * should be narrowed down.
+     *
+     * @param query The search, in SQLite's full text query syntax (i.e. "word", "wor*", "two words", "one OR other")
+     * @param limit The maximum number of results
+     * @return Key -> a snippet of its value with the matches in [brackets], ordered by rank
+     * @throws IllegalArgumentException if the query isn't valid
+     */
+    public Map<String, String> search(String query, int limit) {
+        // The candidates are a subquery with its own LIMIT, so SQLite doesn't flatten it and offsets() runs once per candidate
+        String candidatesQuery = "SELECT docid, offsets(" + DICTIONARY_FTS_TABLE_NAME + ") AS matches, snippet(" + DICTIONARY_FTS_TABLE_NAME + ", '[', ']', '...', -1, 12) AS snippet" +
+                " FROM " + DICTIONARY_FTS_TABLE_NAME +
+                " WHERE " + DICTIONARY_FTS_TABLE_NAME + " MATCH ?" +
+                " LIMIT " + Math.max(limit, SEARCH_MAX_CANDIDATES);
+        // offsets() has 4 numbers per match, separated by spaces
+        String matchesCount = "(length(candidates.matches) - length(replace(candidates.matches, ' ', '')) + 1) / 4";
+        String selectQuery = "SELECT " + DICTIONARY_TABLE_NAME + ".Key, candidates.snippet" +
+                " FROM (" + candidatesQuery + ") AS candidates JOIN " + DICTIONARY_TABLE_NAME + " ON " + DICTIONARY_TABLE_NAME + ".rowid = candidates.docid" +
+                " ORDER BY " + matchesCount + " DESC, length(" + DICTIONARY_TABLE_NAME + ".Value)" +
+                " LIMIT " + limit;
+
+        LinkedHashMap<String, String> keysAndSnippets = new LinkedHashMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = getDatabase().rawQuery(selectQuery, new String[]{query});
+            while (cursor.moveToNext()) {
+                keysAndSnippets.put(cursor.getString(0), cursor.getString(1));
+            }
+        } catch (SQLiteException e) {
+            throw new IllegalArgumentException("Invalid search query: " + query, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return keysAndSnippets;
+    }
 
-        if (cursor.moveToFirst()) {
-            returnValue = cursor.getString(0);
+    /**
+     * Gets a page of rows (Key, Value), ordered by key.
+     *
+     * @param afterKey The last key of the previous page, null for the first page
+     * @param limit    The page's size
+     * @throws IllegalArgumentException if the limit isn't positive
+     */
+    Cursor getRowsAfter(String afterKey, int limit) {
+        checkLimit(limit);
+        SQLiteDatabase database = getDatabase();
+        if (afterKey == null) {
+            return database.rawQuery("SELECT Key, Value FROM " + DICTIONARY_TABLE_NAME + " ORDER BY Key LIMIT " + limit, null);
         }
 
-        return returnValue;
+        return database.rawQuery("SELECT Key, Value FROM " + DICTIONARY_TABLE_NAME + " WHERE Key > ? ORDER BY Key LIMIT " + limit, new String[]{afterKey});
+    }
+
+    /**
+     * Queries the rows, only the asked columns are read.
+     *
+     * @param projection    The columns (_id, Key, Value), null for all
+     * @param selection     A WHERE clause of these columns, may be null
+     * @param selectionArgs The arguments of the selection, may be null
+     * @param sortOrder     An ORDER BY clause, may be null
+     * @param limit         A LIMIT clause ("limit" or "offset,limit"), may be null
+     * @throws IllegalArgumentException if there's a column that isn't in the dictionary
+     */
+    Cursor query(String[] projection, String selection, String[] selectionArgs, String sortOrder, String limit) {
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(DICTIONARY_TABLE_NAME);
+        queryBuilder.setProjectionMap(COLUMNS);
+        // Rejects selections that try to escape their WHERE clause
+        queryBuilder.setStrict(true);
+
+        return queryBuilder.query(getDatabase(), projection, selection, selectionArgs, null, null, sortOrder, limit);
     }
 
     public Cursor getCursor(String key) {
-        SQLiteDatabase database = this.getReadableDatabase();
-        String selectQuery = "SELECT Value FROM " + DICTIONARY_TABLE_NAME + " where Key = '" + key + "'"; // Instead of "SELECT * FROM"
-        Cursor cursor = database.rawQuery(selectQuery, null);
+        SQLiteDatabase database = getDatabase();
+        String selectQuery = "SELECT Value FROM " + DICTIONARY_TABLE_NAME + " WHERE Key = ?"; // Instead of "SELECT * FROM"
+        // A null key is looked up as "null", like the query was built before
+        Cursor cursor = database.rawQuery(selectQuery, new String[]{String.valueOf(key)});
 
         return cursor;
     }
-}
\ No newline at end of file
+}
@@ -1,18 +1,31 @@
 package com.perrchick.someapplication.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by perrchick on 11/19/15.
  */
 public class SomeApplicationProvider extends ContentProvider {
+    private static final String TAG = SomeApplicationProvider.class.getSimpleName();
     // In MANIFEST.XML: <provider android:name=".data.SomeApplicationProvider" android:authorities={PROVIDER_NAME} />
     static final String PROVIDER_NAME = "com.perrchick.someapplication.provider";
     static final String URL = "content://" + PROVIDER_NAME + "/string/Key";
@@ -20,24 +33,58 @@ public class SomeApplicationProvider extends ContentProvider {
 
     static final String KEY = "Key";
 
+    // content://{PROVIDER_NAME}/string?limit=100&offset=200 (or &after=<the last key of the previous page>)
+    static final Uri ROWS_URI = Uri.parse("content://" + PROVIDER_NAME + "/string");
+    // content://{PROVIDER_NAME}/string/export?format=jsonl (or tsv, the default), read with openInputStream()
+    static final Uri EXPORT_URI = Uri.parse("content://" + PROVIDER_NAME + "/string/export");
+    static final String QUERY_PARAMETER_LIMIT = "limit";
+    static final String QUERY_PARAMETER_OFFSET = "offset";
+    static final String QUERY_PARAMETER_AFTER = "after";
+    static final String QUERY_PARAMETER_FORMAT = "format";
+    // A page that isn't limited is limited to this, larger results should be exported
+    private static final int DEFAULT_PAGE_SIZE = 500;
+    private static final String SORT_ORDER_PATTERN = "(Key|Value)( (ASC|DESC))?";
+
     static final UriMatcher uriMatcher;
     private static final int URI_MATCH_KEY_VALUE = 1;
+    private static final int URI_MATCH_ROWS = 2;
+    private static final int URI_MATCH_EXPORT = 3;
 
     static{
         uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         uriMatcher.addURI(PROVIDER_NAME, KEY, URI_MATCH_KEY_VALUE);
+        uriMatcher.addURI(PROVIDER_NAME, "string/" + KEY, URI_MATCH_KEY_VALUE);
+        uriMatcher.addURI(PROVIDER_NAME, "string", URI_MATCH_ROWS);
+        uriMatcher.addURI(PROVIDER_NAME, "string/export", URI_MATCH_EXPORT);
     }
 
+    // Exports that run at the same time, the others wait for them (their readers wait on their pipes)
+    private static final int MAX_CONCURRENT_EXPORTS = 2;
+    // Writes the exports into their pipes
+    private static final ExecutorService exportExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_EXPORTS);
+
     private DictionaryOpenHelper db_sqLiteHelper;
-    private SQLiteDatabase db;
+    // Batches run on the caller's binder thread, their writes notify once at the end of the batch
+    private final ThreadLocal<Boolean> isInBatch = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+    private final ThreadLocal<Boolean> isChangedInBatch = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
 
     @Override
     public boolean onCreate() {
-        this.db_sqLiteHelper = new DictionaryOpenHelper(this.getContext());
+        // The same instance as the rest of the app, so there's a single connection to the database
+        this.db_sqLiteHelper = DictionaryOpenHelper.getInstance(this.getContext());
 
-        // Create a write able database which will trigger its creation if it doesn't already exist.
-        this.db = db_sqLiteHelper.getWritableDatabase();
-        return this.db != null;
+        // The database is opened (and created or upgraded) by the first call that needs it, onCreate() runs on the main thread
+        return true;
     }
 
     @Override
@@ -47,25 +94,133 @@ public class SomeApplicationProvider extends ContentProvider {
         // content://contacts/people/5
         Cursor cursor = null;
 
+        if (sortOrder != null && !sortOrder.matches(SORT_ORDER_PATTERN)) {
+            throw new IllegalArgumentException("Unsupported sort order " + sortOrder);
+        }
+
         switch (SomeApplicationProvider.uriMatcher.match(uri)) {
             case URI_MATCH_KEY_VALUE:
-                cursor = this.db_sqLiteHelper.getCursor(selection);
+                // The selection is the key, only its value is read unless other columns were asked for
+                cursor = this.db_sqLiteHelper.query(projection == null ? new String[]{"Value"} : projection, KEY + " = ?", new String[]{String.valueOf(selection)}, null, null);
+                break;
+            case URI_MATCH_ROWS:
+                cursor = queryPage(uri, projection, selection, selectionArgs, sortOrder);
                 break;
             default: // Unknown URI
-                cursor = this.db_sqLiteHelper.getCursor(selection);
-                //throw new IllegalArgumentException("Unknown URI " + uri);
+                throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        if (cursor != null) {
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        }
         return cursor;
     }
 
+    /**
+     * Reads a page of rows. Pages by "after" (the last key of the previous page, with the default order) seek the key's
+     * index directly, pages by "offset" skip the rows before them.
+     */
+    private Cursor queryPage(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        String offset = uri.getQueryParameter(QUERY_PARAMETER_OFFSET);
+        String afterKey = uri.getQueryParameter(QUERY_PARAMETER_AFTER);
+        int pageSize;
+        int pageOffset;
+        try {
+            pageSize = limit == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit);
+            pageOffset = offset == null ? 0 : Integer.parseInt(offset);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid paging in " + uri, e);
+        }
+        // SQLite takes a negative limit as no limit at all
+        if (pageSize <= 0 || pageOffset < 0) {
+            throw new IllegalArgumentException("Invalid paging in " + uri + ", the limit must be positive and the offset mustn't be negative");
+        }
+
+        if (afterKey != null) {
+            if (sortOrder != null && !sortOrder.equals(KEY) && !sortOrder.equals(KEY + " ASC")) {
+                throw new IllegalArgumentException("Paging by '" + QUERY_PARAMETER_AFTER + "' requires ascending order by " + KEY);
+            }
+            selection = selection == null ? KEY + " > ?" : "(" + selection + ") AND " + KEY + " > ?";
+            String[] pageSelectionArgs = new String[selectionArgs == null ? 1 : selectionArgs.length + 1];
+            if (selectionArgs != null) {
+                System.arraycopy(selectionArgs, 0, pageSelectionArgs, 0, selectionArgs.length);
+            }
+            pageSelectionArgs[pageSelectionArgs.length - 1] = afterKey;
+            selectionArgs = pageSelectionArgs;
+        }
+
+        return this.db_sqLiteHelper.query(projection, selection, selectionArgs, sortOrder == null ? KEY : sortOrder, pageOffset + "," + pageSize);
+    }
+
     @Override
     public String getType(Uri uri) {
-        return null;
+        switch (SomeApplicationProvider.uriMatcher.match(uri)) {
+            case URI_MATCH_KEY_VALUE:
+                return "vnd.android.cursor.item/vnd." + PROVIDER_NAME + ".string";
+            case URI_MATCH_ROWS:
+                return "vnd.android.cursor.dir/vnd." + PROVIDER_NAME + ".string";
+            case URI_MATCH_EXPORT:
+                return exportFormatOf(uri) == DictionaryFormat.JSON_LINES ? "application/x-ndjson" : "text/tab-separated-values";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Streams the whole dictionary through a pipe (the export URI only), so a large result isn't limited by a cursor window
+     * and isn't held in memory on either side.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (SomeApplicationProvider.uriMatcher.match(uri) != URI_MATCH_EXPORT || !"r".equals(mode)) {
+            throw new FileNotFoundException("Only " + EXPORT_URI + " can be opened, for reading");
+        }
+
+        final DictionaryFormat format = exportFormatOf(uri);
+        final ParcelFileDescriptor[] pipe;
+        try {
+            // A reliable pipe lets the reader know if the export has failed, instead of seeing a truncated file
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to create a pipe: " + e);
+        }
+
+        final DictionaryExporter dictionaryExporter = new DictionaryExporter(getContext());
+        exportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ParcelFileDescriptor writeSide = pipe[1];
+                try {
+                    FileOutputStream outputStream = new FileOutputStream(writeSide.getFileDescriptor());
+                    long rowsCount = dictionaryExporter.export(outputStream, format);
+                    Log.v(TAG, "Exported " + rowsCount + " rows");
+                    writeSide.close();
+                } catch (IOException | RuntimeException e) {
+                    // I.e. the reader has closed its side
+                    Log.e(TAG, "Failed to export: " + e);
+                    try {
+                        writeSide.closeWithError(String.valueOf(e.getMessage()));
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+
+        return pipe[0];
+    }
+
+    private static DictionaryFormat exportFormatOf(Uri uri) {
+        return "jsonl".equals(uri.getQueryParameter(QUERY_PARAMETER_FORMAT)) ? DictionaryFormat.JSON_LINES : DictionaryFormat.TSV;
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        int uriMatch = SomeApplicationProvider.uriMatcher.match(uri);
+        if (uriMatch != URI_MATCH_KEY_VALUE && uriMatch != URI_MATCH_ROWS) {
+            throw new IllegalArgumentException("Rows can't be inserted by " + uri);
+        }
+
 /**
  * Add a new student record
  */
@@ -78,18 +233,132 @@ public class SomeApplicationProvider extends ContentProvider {
         if (rowID > 0)
         {
             Uri _uri = ContentUris.withAppendedId(CONTENT_URI, rowID);
-            getContext().getContentResolver().notifyChange(_uri, null);
+            notifyChange(_uri);
             return _uri;
         }
         throw new SQLException("Failed to add a record into " + uri);    }
 
+    /**
+     * Inserts all the rows in a single transaction, with a single change notification
+     */
+    @Override
+    public int bulkInsert(final Uri uri, final ContentValues[] values) {
+        runInBatch(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (ContentValues rowValues : values) {
+                    insert(uri, rowValues);
+                }
+                return null;
+            }
+        });
+
+        return values.length;
+    }
+
+    /**
+     * Applies all the operations in a single transaction, with a single change notification. If any of them fails, none is applied.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        try {
+            return runInBatch(new Callable<ContentProviderResult[]>() {
+                @Override
+                public ContentProviderResult[] call() throws OperationApplicationException {
+                    return SomeApplicationProvider.super.applyBatch(operations);
+                }
+            });
+        } catch (BatchException e) {
+            if (e.getCause() instanceof OperationApplicationException) {
+                throw (OperationApplicationException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes a single row by the key URI, where the selection is its key (like in {@link #query(Uri, String[], String, String[], String)}),
+     * or the rows that match the selection by the rows URI
+     */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        return 0;
+        int deletedRowsCount;
+        switch (SomeApplicationProvider.uriMatcher.match(uri)) {
+            case URI_MATCH_KEY_VALUE:
+                deletedRowsCount = db_sqLiteHelper.delete(String.valueOf(selection)) ? 1 : 0;
+                break;
+            case URI_MATCH_ROWS:
+                deletedRowsCount = db_sqLiteHelper.delete(selection, selectionArgs);
+                break;
+            default:
+                throw new IllegalArgumentException("Rows can't be deleted by " + uri);
+        }
+
+        if (deletedRowsCount > 0) {
+            notifyChange(uri);
+        }
+        return deletedRowsCount;
     }
 
+    /**
+     * Updates the value of a single row by the key URI, where the selection is its key (like in {@link #query(Uri, String[], String, String[], String)}),
+     * or the rows that match the selection by the rows URI
+     */
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        return 0;
+        int updatedRowsCount;
+        switch (SomeApplicationProvider.uriMatcher.match(uri)) {
+            case URI_MATCH_KEY_VALUE:
+                updatedRowsCount = db_sqLiteHelper.update(String.valueOf(selection), values.getAsString("Value")) ? 1 : 0;
+                break;
+            case URI_MATCH_ROWS:
+                updatedRowsCount = db_sqLiteHelper.update(values, selection, selectionArgs);
+                break;
+            default:
+                throw new IllegalArgumentException("Rows can't be updated by " + uri);
+        }
+
+        if (updatedRowsCount > 0) {
+            notifyChange(uri);
+        }
+        return updatedRowsCount;
+    }
+
+    private static class BatchException extends RuntimeException {
+        BatchException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Runs the writes in a single transaction, their change notifications are coalesced into one, sent after the commit
+     */
+    private <T> T runInBatch(Callable<T> writes) {
+        isInBatch.set(true);
+        isChangedInBatch.set(false);
+        T result;
+        try {
+            result = db_sqLiteHelper.runInTransaction(writes);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BatchException(e);
+        } finally {
+            isInBatch.set(false);
+        }
+
+        // Only a committed batch has changed anything
+        if (isChangedInBatch.get()) {
+            getContext().getContentResolver().notifyChange(CONTENT_URI, null);
+        }
+        return result;
+    }
+
+    private void notifyChange(Uri uri) {
+        if (isInBatch.get()) {
+            isChangedInBatch.set(true);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
     }
 }
@@ -0,0 +1,75 @@
+package com.perrchick.someapplication.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DictionaryFormatTest {
+    private static final String[][] ROWS = {
+            {"key", "value"},
+            {"empty", ""},
+            {"missing", null},
+            {"tab\tkey", "line\nbreak\r\nand\ttab"},
+            {"back\\slash", "\\N"},
+            {"\\", "\\\\t"},
+            {"\u05de\u05e4\u05ea\u05d7", "\u05e2\u05e8\u05da \ud83d\ude00"},
+    };
+
+    @Test
+    public void tsvRowsAreReadBack() {
+        for (String[] row : ROWS) {
+            assertRoundTrip(DictionaryFormat.TSV, row);
+        }
+    }
+
+    @Test
+    public void jsonLinesRowsAreReadBack() {
+        for (String[] row : ROWS) {
+            assertRoundTrip(DictionaryFormat.JSON_LINES, row);
+        }
+    }
+
+    @Test
+    public void tsvLineIsASingleLine() {
+        String line = DictionaryFormat.TSV.formatLine("a\nb", "c\r\nd");
+
+        assertEquals("a\\nb\tc\\r\\nd", line);
+    }
+
+    @Test
+    public void tsvNullIsntAnEmptyString() {
+        assertEquals("key\t\\N", DictionaryFormat.TSV.formatLine("key", null));
+        assertEquals("key\t", DictionaryFormat.TSV.formatLine("key", ""));
+        assertEquals("key\t\\\\N", DictionaryFormat.TSV.formatLine("key", "\\N"));
+    }
+
+    @Test
+    public void tsvNullKeyIsFormattedButNotImported() {
+        String line = DictionaryFormat.TSV.formatLine(null, "value");
+        assertEquals("\\N\tvalue", line);
+
+        try {
+            DictionaryFormat.TSV.parseLine(line);
+            throw new AssertionError("A row without a key was parsed");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tsvLineWithoutTabIsRejected() {
+        DictionaryFormat.TSV.parseLine("key value");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void jsonLineThatIsntARowIsRejected() {
+        DictionaryFormat.JSON_LINES.parseLine("[\"key\", \"value\"]");
+    }
+
+    private static void assertRoundTrip(DictionaryFormat format, String[] row) {
+        String line = format.formatLine(row[0], row[1]);
+
+        assertEquals(-1, line.indexOf('\n'));
+        assertArrayEquals(row, format.parseLine(line));
+    }
+}
@@ -0,0 +1,127 @@
+package com.perrchick.someapplication.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DictionaryImporterTest {
+    /**
+     * Keeps the rows in memory, and fails the chunk it was told to fail
+     */
+    private static class RecordingChunkWriter implements DictionaryImporter.ChunkWriter {
+        final HashMap<String, String> rows = new HashMap<>();
+        final List<Integer> chunkSizes = new ArrayList<>();
+        int failingChunk = -1;
+
+        @Override
+        public int putAll(Map<String, String> keysAndValues) {
+            if (chunkSizes.size() == failingChunk) {
+                failingChunk = -1;
+                return 0;
+            }
+            chunkSizes.add(keysAndValues.size());
+            rows.putAll(keysAndValues);
+
+            return keysAndValues.size();
+        }
+    }
+
+    private final RecordingChunkWriter chunkWriter = new RecordingChunkWriter();
+    private final InMemorySharedPreferences checkpoints = new InMemorySharedPreferences();
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("dictionaryimportertest", ".tsv");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void crlfLinesAreImportedWithoutTheirCarriageReturns() throws IOException {
+        write("a\t1\r\nb\t2\r\n\r\nc\t\\N\r\nd\t4");
+
+        long rowsImported = new DictionaryImporter(chunkWriter, checkpoints).importFile(file, DictionaryFormat.TSV, null);
+
+        assertEquals(4, rowsImported);
+        assertEquals("1", chunkWriter.rows.get("a"));
+        assertEquals("2", chunkWriter.rows.get("b"));
+        assertTrue(chunkWriter.rows.containsKey("c"));
+        assertNull(chunkWriter.rows.get("c"));
+        assertEquals("4", chunkWriter.rows.get("d"));
+    }
+
+    @Test
+    public void lineLongerThanTheBufferIsImported() throws IOException {
+        // Longer than the importer's 64 KB buffer, and its multi-byte characters cross the buffer's edges
+        StringBuilder longValue = new StringBuilder();
+        while (longValue.length() < 100 * 1024) {
+            longValue.append("\u05e2\u05e8\u05da ");
+        }
+        write("short\tvalue\nlong\t" + longValue + "\nlast\tvalue\n");
+
+        long rowsImported = new DictionaryImporter(chunkWriter, checkpoints).importFile(file, DictionaryFormat.TSV, null);
+
+        assertEquals(3, rowsImported);
+        assertEquals(longValue.toString(), chunkWriter.rows.get("long"));
+        assertEquals("value", chunkWriter.rows.get("last"));
+    }
+
+    @Test
+    public void importResumesAfterTheLastCommittedChunk() throws IOException {
+        write("a\t1\nb\t2\nc\t3\nd\t4\ne\t5\n");
+        chunkWriter.failingChunk = 1;
+
+        try {
+            new DictionaryImporter(chunkWriter, checkpoints).setChunkSize(2).importFile(file, DictionaryFormat.TSV, null);
+            throw new AssertionError("The failed chunk wasn't reported");
+        } catch (IOException expected) {
+        }
+        assertEquals(Arrays.asList(2), chunkWriter.chunkSizes);
+        assertEquals(1, checkpoints.getAll().size());
+
+        long rowsImported = new DictionaryImporter(chunkWriter, checkpoints).setChunkSize(2).importFile(file, DictionaryFormat.TSV, null);
+
+        // The first chunk isn't imported again, the last one is partial
+        assertEquals(3, rowsImported);
+        assertEquals(Arrays.asList(2, 2, 1), chunkWriter.chunkSizes);
+        assertEquals(5, chunkWriter.rows.size());
+        assertTrue(checkpoints.getAll().isEmpty());
+    }
+
+    @Test
+    public void badLinesAreSkipped() throws IOException {
+        write("a\t1\nno tab\n\\N\tno key\nb\t2\n");
+
+        long rowsImported = new DictionaryImporter(chunkWriter, checkpoints).importFile(file, DictionaryFormat.TSV, null);
+
+        assertEquals(2, rowsImported);
+        assertEquals(2, chunkWriter.rows.size());
+    }
+
+    private void write(String content) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.perrchick.onlinesharedpreferences;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Collects the changes of a time window into a single change set, and delivers it on the main thread, once per frame
+ * (or once per interval). Several changes of the same key in one window are merged into one.
+ */
+class ChangeBatcher {
+    private final SyncedSharedPreferences.BatchedSyncedSharedPreferencesListener listener;
+    private final Handler mainThreadDispatcher;
+    private final long intervalMillis;
+    // Keeps the order of the first change of every key
+    private LinkedHashMap<String, SyncedChange> pendingChanges = new LinkedHashMap<>();
+    private boolean isFlushScheduled;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param intervalMillis   How long a window is, 0 to deliver once per frame
+     */
+    ChangeBatcher(SyncedSharedPreferences.BatchedSyncedSharedPreferencesListener listener, Handler mainThreadDispatcher, long intervalMillis) {
+        this.listener = listener;
+        this.mainThreadDispatcher = mainThreadDispatcher;
+        this.intervalMillis = intervalMillis;
+    }
+
+    void add(SyncedChange change) {
+        synchronized (this) {
+            SyncedChange earlierChange = pendingChanges.get(change.getKey());
+            if (earlierChange == null) {
+                pendingChanges.put(change.getKey(), change);
+            } else {
+                SyncedChange mergedChange = earlierChange.mergedWith(change);
+                if (mergedChange == null) {
+                    pendingChanges.remove(change.getKey());
+                } else {
+                    pendingChanges.put(change.getKey(), mergedChange);
+                }
+            }
+
+            if (isFlushScheduled) {
+                return;
+            }
+            isFlushScheduled = true;
+        }
+
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (intervalMillis > 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            mainThreadDispatcher.postDelayed(flush, intervalMillis);
+        } else {
+            // The Choreographer belongs to the main thread
+            mainThreadDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    postFrameCallback();
+                }
+            });
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                flush();
+            }
+        });
+    }
+
+    // Runs on the main thread
+    private void flush() {
+        LinkedHashMap<String, SyncedChange> changes;
+        synchronized (this) {
+            isFlushScheduled = false;
+            changes = pendingChanges;
+            pendingChanges = new LinkedHashMap<>();
+        }
+
+        if (!changes.isEmpty()) {
+            listener.onSyncedSharedPreferencesChanged(changes);
+        }
+    }
+}
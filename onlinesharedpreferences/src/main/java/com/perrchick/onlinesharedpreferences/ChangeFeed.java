@@ -0,0 +1,91 @@
+package com.perrchick.onlinesharedpreferences;
+
+import com.perrchick.onlinesharedpreferences.SyncedSharedPreferences.SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A bounded feed of the recent changes, numbered by their order. The changes are kept in preallocated parallel arrays,
+ * so appending one doesn't allocate anything. Once the feed is full, the oldest change is dropped.
+ * The sequence numbers start at a random epoch of the instance, so a sequence number that was saved with another instance
+ * (i.e. before the process was restarted) isn't mistaken for one of this instance's changes.
+ * Not thread safe, the caller synchronizes.
+ */
+class ChangeFeed {
+    // Enough for a change every microsecond for 12 days, the rest of the (positive) long is the epoch
+    private static final int SEQUENCE_NUMBER_BITS = 40;
+    static final int MAX_EPOCH = (1 << (63 - SEQUENCE_NUMBER_BITS)) - 1;
+
+    private final SyncedSharedPreferencesChangeType[] changeTypes;
+    private final String[] keys;
+    private final String[] values;
+    // The sequence number before the first change, the epoch is in its high bits
+    private final long firstSequenceNumber;
+    // The sequence number of the last change, firstSequenceNumber before the first one
+    private long lastSequenceNumber;
+
+    ChangeFeed(int capacity) {
+        this(capacity, 1 + new Random().nextInt(MAX_EPOCH));
+    }
+
+    /**
+     * @param epoch   Between 1 and {@link #MAX_EPOCH}
+     */
+    ChangeFeed(int capacity, int epoch) {
+        changeTypes = new SyncedSharedPreferencesChangeType[capacity];
+        keys = new String[capacity];
+        values = new String[capacity];
+        firstSequenceNumber = (long) epoch << SEQUENCE_NUMBER_BITS;
+        lastSequenceNumber = firstSequenceNumber;
+    }
+
+    /**
+     * @return The sequence number of the change
+     */
+    long append(SyncedSharedPreferencesChangeType changeType, String key, String value) {
+        lastSequenceNumber++;
+        int index = indexOf(lastSequenceNumber);
+        changeTypes[index] = changeType;
+        keys[index] = key;
+        values[index] = value;
+
+        return lastSequenceNumber;
+    }
+
+    /**
+     * @return The sequence number of the last change, the one before the first change if there are none yet
+     */
+    long getLastSequenceNumber() {
+        return lastSequenceNumber;
+    }
+
+    /**
+     * @param sequenceNumber   The last change that was already seen
+     * @param keyPrefix        Only the changes of keys that start with this prefix
+     * @return The changes that came after it, oldest first, or null if some of them were already dropped
+     *         (or if it's not one of this feed's sequence numbers)
+     */
+    List<SyncedChange> changesAfter(long sequenceNumber, String keyPrefix) {
+        long oldestSequenceNumber = Math.max(firstSequenceNumber + 1, lastSequenceNumber - keys.length + 1);
+        if (sequenceNumber < oldestSequenceNumber - 1 || sequenceNumber > lastSequenceNumber) {
+            // Dropped, or from another instance's feed (another epoch)
+            return null;
+        }
+
+        ArrayList<SyncedChange> changes = new ArrayList<>((int) (lastSequenceNumber - sequenceNumber));
+        for (long missedSequenceNumber = sequenceNumber + 1; missedSequenceNumber <= lastSequenceNumber; missedSequenceNumber++) {
+            int index = indexOf(missedSequenceNumber);
+            if (keys[index].startsWith(keyPrefix)) {
+                changes.add(new SyncedChange(changeTypes[index], keys[index], values[index]));
+            }
+        }
+
+        return changes;
+    }
+
+    private int indexOf(long sequenceNumber) {
+        return (int) (sequenceNumber % keys.length);
+    }
+}
@@ -0,0 +1,372 @@
+package com.perrchick.onlinesharedpreferences;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A write-ahead journal for commits: every commit is appended to a local file before it's sent to the cloud,
+ * and stays there until the cloud confirms it. Whatever is left (i.e. after a network failure or a crash) is
+ * replayed in order after a backoff, or as soon as the network is back, writes to the same key are coalesced into the last one.
+ * Replaying is idempotent, because the backend upserts by (package name, key).
+ * Entries that weren't confirmed yet can be read back with {@link #getPendingEntries(Collection)}.
+ */
+class CommitJournal {
+    private static final String TAG = CommitJournal.class.getSimpleName();
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+    // One journal per file, shared by all the instances in the process
+    private static final HashMap<String, CommitJournal> journals = new HashMap<>();
+
+    private final Context context;
+    private final JournalFile file;
+    private final String packageName;
+    private final PreferencesBackend backend;
+    // All the file operations and flushes run here, one at a time
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+    // Registered only while there are entries waiting for the network
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isConnected()) {
+                requestFlush();
+            }
+        }
+    };
+
+    // Key -> the last journaled entry of that key that wasn't uploaded yet, guarded by itself
+    private final HashMap<String, PendingEntry> pendingEntries = new HashMap<>();
+    // The number of the last appended batch, guarded by pendingEntries
+    private long lastBatchNumber;
+
+    // The rest is accessed only on the executor
+    // Commits that were journaled but not confirmed yet
+    private final ArrayList<OnlineSharedPreferences.CommitCallback> pendingCallbacks = new ArrayList<>();
+    // The number of the last batch that is on the disk, the entries of recovered batches are numbered 0
+    private long lastWrittenBatchNumber;
+    private boolean isFlushing;
+    private boolean shouldFlushAgain;
+    private boolean isRetryScheduled;
+    private int failedFlushes;
+    private boolean isReceiverRegistered;
+
+    private static class PendingEntry {
+        final String value;
+        final long batchNumber;
+
+        PendingEntry(String value, long batchNumber) {
+            this.value = value;
+            this.batchNumber = batchNumber;
+        }
+    }
+
+    /**
+     * Gets the journal of the given name, the first caller's backend is the one that the journal uploads to
+     */
+    static synchronized CommitJournal of(Context context, String name, String packageName, PreferencesBackend backend) {
+        CommitJournal journal = journals.get(name);
+        if (journal == null) {
+            journal = new CommitJournal(context.getApplicationContext(), name, packageName, backend);
+            journals.put(name, journal);
+        }
+
+        return journal;
+    }
+
+    private CommitJournal(Context context, String name, String packageName, PreferencesBackend backend) {
+        this.context = context;
+        this.file = new JournalFile(new File(context.getFilesDir(), "onlinesharedpreferences_" + name + ".journal"));
+        this.packageName = packageName;
+        this.backend = backend;
+
+        // Replay whatever was left by the previous process
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                recover();
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Appends the entries to the journal and returns immediately, the journal will upload them in the background.
+     * The entries are visible to {@link #getPendingEntries(Collection)} right away, until they're uploaded.
+     * @param entries          The <key,value> combinations to save, a null value removes the key
+     * @param commitCallback   The callback object that will be called once the entries are in the cloud, or with a failure if they couldn't be journaled.
+     *                         Uploads that fail are retried (the callback waits for them), may be null
+     */
+    void append(final Map<String, String> entries, final OnlineSharedPreferences.CommitCallback commitCallback) {
+        final long batchNumber;
+        synchronized (pendingEntries) {
+            batchNumber = ++lastBatchNumber;
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                pendingEntries.put(entry.getKey(), new PendingEntry(entry.getValue(), batchNumber));
+            }
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    file.append(entries);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to append to the journal: " + e);
+                    // Won't be uploaded, stop serving it
+                    dropPendingEntries(batchNumber, batchNumber);
+                    notifyCommitted(commitCallback, e);
+                    return;
+                }
+
+                lastWrittenBatchNumber = batchNumber;
+                if (commitCallback != null) {
+                    pendingCallbacks.add(commitCallback);
+                }
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Gets the journaled entries of the given keys that weren't uploaded yet, so reads can see the local writes
+     * @param keys   The keys that identify the values
+     * @return The pending keys only, a null value means the key was removed
+     */
+    Map<String, String> getPendingEntries(Collection<String> keys) {
+        HashMap<String, String> entries = new HashMap<>();
+        synchronized (pendingEntries) {
+            if (pendingEntries.isEmpty()) {
+                return entries;
+            }
+            for (String key : keys) {
+                PendingEntry pendingEntry = pendingEntries.get(key);
+                if (pendingEntry != null) {
+                    entries.put(key, pendingEntry.value);
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return All the journaled entries that weren't uploaded yet, a null value means the key was removed
+     */
+    Map<String, String> getPendingEntries() {
+        synchronized (pendingEntries) {
+            HashMap<String, String> entries = new HashMap<>(pendingEntries.size());
+            for (Map.Entry<String, PendingEntry> pendingEntry : pendingEntries.entrySet()) {
+                entries.put(pendingEntry.getKey(), pendingEntry.getValue().value);
+            }
+
+            return entries;
+        }
+    }
+
+    private void requestFlush() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    // Runs on the executor
+    private void recover() {
+        try {
+            if (file.truncateIncompleteBatch()) {
+                Log.e(TAG, "Dropped an incomplete batch from the journal");
+            }
+            LinkedHashMap<String, String> recoveredEntries = file.readCoalesced(file.length());
+            synchronized (pendingEntries) {
+                for (Map.Entry<String, String> entry : recoveredEntries.entrySet()) {
+                    // Anything that was appended meanwhile is newer
+                    if (!pendingEntries.containsKey(entry.getKey())) {
+                        pendingEntries.put(entry.getKey(), new PendingEntry(entry.getValue(), 0));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to recover the journal: " + e);
+        }
+    }
+
+    // Runs on the executor
+    private void flush() {
+        if (isFlushing) {
+            shouldFlushAgain = true;
+            return;
+        }
+
+        final LinkedHashMap<String, String> entries;
+        final long flushedLength;
+        try {
+            flushedLength = file.length();
+            entries = file.readCoalesced(flushedLength);
+        } catch (IOException e) {
+            // Like a failed upload, the entries and their callbacks wait for the retry
+            Log.e(TAG, "Failed to read the journal: " + e);
+            scheduleRetry();
+            return;
+        }
+
+        setReceiverRegistered(!entries.isEmpty());
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (!isConnected()) {
+            // The connectivity receiver will flush again
+            Log.v(TAG, "Offline, " + entries.size() + " journaled entries will be uploaded later");
+            return;
+        }
+
+        isFlushing = true;
+        shouldFlushAgain = false;
+        final long flushedBatchNumber = lastWrittenBatchNumber;
+        final ArrayList<OnlineSharedPreferences.CommitCallback> coveredCallbacks = new ArrayList<>(pendingCallbacks);
+        pendingCallbacks.clear();
+
+        Log.v(TAG, "Uploading " + entries.size() + " journaled entries...");
+        backend.upsert(packageName, entries, new PreferencesBackend.Callback<Void>() {
+            @Override
+            public void done(Void result, final Exception e) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFlushed(flushedLength, flushedBatchNumber, coveredCallbacks, e);
+                    }
+                });
+            }
+        });
+    }
+
+    // Runs on the executor
+    private void onFlushed(long flushedLength, long flushedBatchNumber, ArrayList<OnlineSharedPreferences.CommitCallback> coveredCallbacks, Exception e) {
+        isFlushing = false;
+
+        if (e != null) {
+            // The entries stay in the journal, and their callbacks wait for the retry
+            Log.e(TAG, "... Failed to upload journaled entries: " + e);
+            pendingCallbacks.addAll(0, coveredCallbacks);
+            scheduleRetry();
+            return;
+        }
+
+        Log.v(TAG, "... Uploaded journaled entries");
+        failedFlushes = 0;
+        dropPendingEntries(0, flushedBatchNumber);
+        try {
+            file.dropPrefix(flushedLength);
+        } catch (IOException ioException) {
+            // Will be uploaded again, no harm done
+            Log.e(TAG, "Failed to drop uploaded entries from the journal: " + ioException);
+        }
+
+        for (OnlineSharedPreferences.CommitCallback commitCallback : coveredCallbacks) {
+            notifyCommitted(commitCallback, null);
+        }
+
+        if (shouldFlushAgain) {
+            flush();
+        } else if (file.length() == 0) {
+            setReceiverRegistered(false);
+        }
+    }
+
+    /**
+     * Flushes again after a jittered exponential backoff, unless the network comes back first
+     */
+    // Runs on the executor
+    private void scheduleRetry() {
+        if (isRetryScheduled) {
+            return;
+        }
+        isRetryScheduled = true;
+        long maxDelayMillis = Math.min(MAX_RETRY_DELAY_MILLIS, MIN_RETRY_DELAY_MILLIS << Math.min(failedFlushes, 16));
+        failedFlushes++;
+        // Anywhere between half and the whole of the current backoff
+        long delayMillis = maxDelayMillis / 2 + (long) (random.nextDouble() * (maxDelayMillis / 2));
+
+        Log.v(TAG, "Retrying the upload in " + delayMillis + " ms (attempt " + failedFlushes + ")...");
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                isRetryScheduled = false;
+                flush();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops serving the entries of the given batches, unless the same key was written again by a later batch
+     */
+    private void dropPendingEntries(long fromBatchNumber, long toBatchNumber) {
+        synchronized (pendingEntries) {
+            Iterator<PendingEntry> iterator = pendingEntries.values().iterator();
+            while (iterator.hasNext()) {
+                long batchNumber = iterator.next().batchNumber;
+                if (batchNumber >= fromBatchNumber && batchNumber <= toBatchNumber) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    // Runs on the executor
+    private void setReceiverRegistered(boolean shouldRegister) {
+        if (shouldRegister == isReceiverRegistered) {
+            return;
+        }
+
+        if (shouldRegister) {
+            context.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        } else {
+            context.unregisterReceiver(connectivityReceiver);
+        }
+        isReceiverRegistered = shouldRegister;
+    }
+
+    private void notifyCommitted(final OnlineSharedPreferences.CommitCallback commitCallback, final Exception e) {
+        if (commitCallback == null) {
+            return;
+        }
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                commitCallback.done(OnlineSharedPreferences.toBackendlessException(e));
+            }
+        });
+    }
+
+    private boolean isConnected() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
+        return activeNetworkInfo != null && activeNetworkInfo.isConnected();
+    }
+}
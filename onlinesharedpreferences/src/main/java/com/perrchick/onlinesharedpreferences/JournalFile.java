@@ -0,0 +1,209 @@
+package com.perrchick.onlinesharedpreferences;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The file behind {@link CommitJournal}, an append-only sequence of checksummed batches.
+ * A batch that was cut in the middle (i.e. the process died while writing it) is detected and ignored.
+ * Not thread safe, the journal uses it from a single thread.
+ */
+class JournalFile {
+    private static final String CHARSET = "UTF-8";
+
+    private final File file;
+
+    interface BatchReader {
+        void onEntry(String key, String value);
+    }
+
+    JournalFile(File file) {
+        this.file = file;
+    }
+
+    /*
+     * Journal format, a sequence of batches:
+     * [int length][length bytes of batch][long CRC32 of batch]
+     * Batch: [int entries count] and for every entry [boolean is put][key][value, if put], strings are [int length][UTF-8 bytes]
+     */
+
+    long length() {
+        return file.length();
+    }
+
+    /**
+     * Appends the entries as a single batch, and returns only after it's on the disk
+     * @param entries   The <key,value> combinations, a null value marks a removed key
+     */
+    void append(Map<String, String> entries) throws IOException {
+        ByteArrayOutputStream batchBytes = new ByteArrayOutputStream();
+        DataOutputStream batch = new DataOutputStream(batchBytes);
+        batch.writeInt(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            batch.writeBoolean(entry.getValue() != null);
+            writeString(batch, entry.getKey());
+            if (entry.getValue() != null) {
+                writeString(batch, entry.getValue());
+            }
+        }
+        batch.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(batchBytes.toByteArray());
+
+        FileOutputStream fileOutputStream = new FileOutputStream(file, true);
+        try {
+            DataOutputStream journal = new DataOutputStream(fileOutputStream);
+            journal.writeInt(batchBytes.size());
+            batchBytes.writeTo(journal);
+            journal.writeLong(crc.getValue());
+            journal.flush();
+            // Durable before anyone is told it's committed
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+    }
+
+    /**
+     * Reads all the complete batches in the first 'length' bytes, writes to the same key are coalesced into the last one
+     * @return The entries, in the order of their last write
+     */
+    LinkedHashMap<String, String> readCoalesced(long length) throws IOException {
+        final LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+        read(length, new BatchReader() {
+            @Override
+            public void onEntry(String key, String value) {
+                // Keep the order of the last write
+                entries.remove(key);
+                entries.put(key, value);
+            }
+        });
+
+        return entries;
+    }
+
+    /**
+     * Reads all the complete batches in the first 'length' bytes of the journal
+     * @return The length of the complete batches
+     */
+    long read(long length, BatchReader batchReader) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        long validLength = 0;
+        DataInputStream journal = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (validLength < length) {
+                int batchLength = journal.readInt();
+                if (batchLength < 0 || validLength + 4 + batchLength + 8 > length) {
+                    break;
+                }
+                byte[] batchBytes = new byte[batchLength];
+                journal.readFully(batchBytes);
+                CRC32 crc = new CRC32();
+                crc.update(batchBytes);
+                if (crc.getValue() != journal.readLong()) {
+                    break;
+                }
+
+                DataInputStream batch = new DataInputStream(new ByteArrayInputStream(batchBytes));
+                int entriesCount = batch.readInt();
+                for (int i = 0; i < entriesCount; i++) {
+                    boolean isPut = batch.readBoolean();
+                    String key = readString(batch);
+                    batchReader.onEntry(key, isPut ? readString(batch) : null);
+                }
+                validLength += 4 + batchLength + 8;
+            }
+        } catch (EOFException e) {
+            // An incomplete batch, the process died in the middle of writing it
+        } finally {
+            journal.close();
+        }
+
+        return validLength;
+    }
+
+    /**
+     * Cuts whatever follows the last complete batch
+     * @return true if an incomplete batch was dropped
+     */
+    boolean truncateIncompleteBatch() throws IOException {
+        long length = file.length();
+        long validLength = read(length, new BatchReader() {
+            @Override
+            public void onEntry(String key, String value) {
+            }
+        });
+        if (validLength == length) {
+            return false;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(validLength);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops the first 'length' bytes of the journal (that were uploaded), keeps whatever was appended after them
+     */
+    void dropPrefix(long length) throws IOException {
+        if (length >= file.length()) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Couldn't delete " + file);
+            }
+            return;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        FileOutputStream destination = new FileOutputStream(tempFile);
+        try {
+            source.seek(length);
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                destination.write(buffer, 0, read);
+            }
+            destination.getFD().sync();
+        } finally {
+            source.close();
+            destination.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream outputStream, String string) throws IOException {
+        byte[] bytes = string.getBytes(CHARSET);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private static String readString(DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[inputStream.readInt()];
+        inputStream.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
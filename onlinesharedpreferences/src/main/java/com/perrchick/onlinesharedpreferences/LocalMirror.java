@@ -0,0 +1,532 @@
+package com.perrchick.onlinesharedpreferences;
+
+import android.util.Log;
+
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory copy of a package's <key,value> combinations, built from the backend's initial snapshot and
+ * kept current by its change events. It's ready (can serve reads) once the initial snapshot has arrived,
+ * or earlier, if it was loaded from the device (then it's possibly stale, until the backend's snapshot arrives).
+ * Changes that are applied while a snapshot is on its way win over it, so a snapshot that was taken before them can't undo them.
+ *
+ * The values of a snapshot that was loaded from the device stay in its mapped file, and they're read from it
+ * (into memory) when they're needed.
+ *
+ * The values in memory are limited by a byte budget. Over the budget, the least recently used values are spilled
+ * to a file on the device, and read back from it when they're needed again. Only their keys stay in memory.
+ *
+ * The values in memory are read without locking. Values on the device are read outside of the lock too,
+ * so a slow read doesn't hold the changes (or the other reads).
+ */
+class LocalMirror {
+    private static final String TAG = LocalMirror.class.getSimpleName();
+    // Roughly what an entry costs besides its characters (the map's entry, the strings' headers)
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+    // Evicting sorts the values by their last access, so it goes down to this share of the budget at once
+    private static final float EVICTION_TARGET = 0.75f;
+
+    /**
+     * Gets the <key,value> combinations one by one, see {@link #forEach(String, Visitor)}
+     */
+    interface Visitor {
+        void visit(String key, String value);
+    }
+
+    /**
+     * A value in memory, with the time of its last access for choosing what to evict
+     */
+    private static class ResidentValue {
+        private final String value;
+        private volatile long lastAccess;
+
+        private ResidentValue(String value, long lastAccess) {
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * A value in memory as it was when the eviction has started, the accesses may still change the original
+     */
+    private static class EvictionCandidate implements Comparable<EvictionCandidate> {
+        private final String key;
+        private final String value;
+        private final long lastAccess;
+
+        private EvictionCandidate(String key, String value, long lastAccess) {
+            this.key = key;
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+
+        @Override
+        public int compareTo(EvictionCandidate other) {
+            return lastAccess < other.lastAccess ? -1 : (lastAccess == other.lastAccess ? 0 : 1);
+        }
+    }
+
+    // Guards everything but the reads of the values in memory
+    private final Object lock = new Object();
+    // Key -> its value, read without the lock (and written only while holding it)
+    private final ConcurrentHashMap<String, ResidentValue> residentValues = new ConcurrentHashMap<>();
+    // Orders the accesses of the values in memory
+    private final AtomicLong accessClock = new AtomicLong();
+    // Key -> the offset of its value in the spill file
+    private final HashMap<String, Long> spilledValues = new HashMap<>();
+    private final SpillFile spillFile;
+    // The snapshot that was loaded from the device, until the backend's snapshot replaces it
+    private SnapshotFile.Mapping savedSnapshot;
+    // Key -> the offset of its value in the saved snapshot, for the keys that weren't read or changed since
+    private final HashMap<String, Integer> savedValues = new HashMap<>();
+    private long memoryBudgetBytes = Long.MAX_VALUE;
+    private long residentBytes;
+    private final CountDownLatch readyLatch = new CountDownLatch(1);
+    // Runs once the mirror is ready
+    private ArrayList<Runnable> readyActions = new ArrayList<>();
+    private volatile boolean isPossiblyStale;
+    // The backend's snapshot has arrived, guarded by the lock (unlike the readiness, which is marked after it's released)
+    private boolean isSynced;
+    // Key -> its last change since the sync has started (null if removed), until the snapshot arrives
+    private HashMap<String, String> changesDuringSync;
+
+    /**
+     * @param spillDirectory   Where the values over the memory budget are kept
+     */
+    LocalMirror(File spillDirectory) {
+        spillFile = new SpillFile(spillDirectory);
+    }
+
+    /**
+     * Sets how many bytes the values in memory may take, the rest are spilled to the device
+     */
+    void setMemoryBudget(long memoryBudgetBytes) {
+        synchronized (lock) {
+            this.memoryBudgetBytes = memoryBudgetBytes;
+            evictOverBudget();
+        }
+    }
+
+    /**
+     * Applies a single change
+     * @return true if the mirror has changed, false if it already had that change
+     */
+    boolean apply(PreferencesBackend.ChangeType changeType, String key, String value) {
+        synchronized (lock) {
+            if (changesDuringSync != null) {
+                changesDuringSync.put(key, changeType == PreferencesBackend.ChangeType.Removed ? null : value);
+            }
+            if (changeType == PreferencesBackend.ChangeType.Removed) {
+                return remove(key) != null;
+            }
+
+            if (value.equals(get(key))) {
+                return false;
+            }
+            put(key, value);
+            evictOverBudget();
+
+            return true;
+        }
+    }
+
+    /**
+     * Loads a snapshot that was saved on the device, and marks the mirror as ready (but possibly stale).
+     * Its values are read from the mapping when they're needed.
+     * @return false if the backend's snapshot has already arrived, then the saved one is ignored
+     */
+    boolean loadSavedSnapshot(SnapshotFile.Mapping savedSnapshot) {
+        synchronized (lock) {
+            if (isSynced) {
+                return false;
+            }
+            this.savedSnapshot = savedSnapshot;
+            for (Map.Entry<String, Integer> savedValue : savedSnapshot.getValueOffsets().entrySet()) {
+                String key = savedValue.getKey();
+                // The backend's changes are newer
+                boolean isChanged = (changesDuringSync != null && changesDuringSync.containsKey(key)) ||
+                        residentValues.containsKey(key) || spilledValues.containsKey(key);
+                if (!isChanged) {
+                    savedValues.put(key, savedValue.getValue());
+                }
+            }
+            isPossiblyStale = true;
+        }
+        markReady();
+
+        return true;
+    }
+
+    /**
+     * Starts collecting the applied changes, should be called right before subscribing, until the snapshot arrives
+     */
+    void startSync() {
+        synchronized (lock) {
+            changesDuringSync = new HashMap<>();
+        }
+    }
+
+    /**
+     * Replaces the whole content with the backend's snapshot, and marks the mirror as ready (and fresh).
+     * Changes that were applied since {@link #startSync()} are kept, the snapshot might have been taken before them.
+     * @return The keys that were in the mirror but aren't in the backend anymore, with their last values
+     */
+    Map<String, String> applySnapshot(Map<String, String> snapshot) {
+        HashMap<String, String> removedKeysAndValues = new HashMap<>();
+        synchronized (lock) {
+            if (changesDuringSync != null && !changesDuringSync.isEmpty()) {
+                HashMap<String, String> currentSnapshot = new HashMap<>(snapshot);
+                for (Map.Entry<String, String> change : changesDuringSync.entrySet()) {
+                    if (change.getValue() == null) {
+                        currentSnapshot.remove(change.getKey());
+                    } else {
+                        currentSnapshot.put(change.getKey(), change.getValue());
+                    }
+                }
+                snapshot = currentSnapshot;
+            }
+            changesDuringSync = null;
+
+            ArrayList<String> removedKeys = new ArrayList<>();
+            for (String key : residentValues.keySet()) {
+                if (!snapshot.containsKey(key)) {
+                    removedKeys.add(key);
+                }
+            }
+            for (String key : spilledValues.keySet()) {
+                if (!snapshot.containsKey(key)) {
+                    removedKeys.add(key);
+                }
+            }
+            for (String key : savedValues.keySet()) {
+                if (!snapshot.containsKey(key)) {
+                    removedKeys.add(key);
+                }
+            }
+            for (String key : removedKeys) {
+                removedKeysAndValues.put(key, remove(key));
+            }
+
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            evictOverBudget();
+            // Every saved value was either replaced or removed
+            savedValues.clear();
+            savedSnapshot = null;
+            isSynced = true;
+            isPossiblyStale = false;
+        }
+        markReady();
+
+        return removedKeysAndValues;
+    }
+
+    /**
+     * @return true if the mirror was loaded from the device and the backend's snapshot hasn't arrived yet
+     */
+    boolean isPossiblyStale() {
+        return isPossiblyStale;
+    }
+
+    private void markReady() {
+        ArrayList<Runnable> actions;
+        synchronized (this) {
+            readyLatch.countDown();
+            actions = readyActions;
+            readyActions = null;
+        }
+        if (actions != null) {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Runs the action once the mirror is ready, right away (on the calling thread) if it's ready already
+     */
+    void whenReady(Runnable action) {
+        synchronized (this) {
+            if (readyActions != null) {
+                readyActions.add(action);
+                return;
+            }
+        }
+
+        action.run();
+    }
+
+    boolean isReady() {
+        return readyLatch.getCount() == 0;
+    }
+
+    /**
+     * Blocks until the mirror is ready, or until the time is out
+     * @return true if the mirror is ready
+     */
+    boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        return readyLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a value, without locking if it's in memory. Otherwise reads it back into memory.
+     */
+    String get(String key) {
+        ResidentValue residentValue = residentValues.get(key);
+        if (residentValue != null) {
+            residentValue.lastAccess = accessClock.incrementAndGet();
+            return residentValue.value;
+        }
+
+        return readBack(key);
+    }
+
+    /**
+     * Gets a value only if it's in memory, never reads the device (so it may be called on the main thread)
+     * @return The value, or null if it's missing or isn't in memory
+     */
+    String getInMemory(String key) {
+        ResidentValue residentValue = residentValues.get(key);
+        if (residentValue == null) {
+            return null;
+        }
+
+        residentValue.lastAccess = accessClock.incrementAndGet();
+        return residentValue.value;
+    }
+
+    /**
+     * Visits the <key,value> combinations as they were when it was called. The values that aren't in memory are read
+     * one at a time (outside of the lock) and aren't kept, so they're never all in memory together.
+     * @param keyPrefix   Only the keys that start with it, an empty prefix for all of them
+     */
+    void forEach(String keyPrefix, Visitor visitor) {
+        HashMap<String, String> residentKeysAndValues = new HashMap<>();
+        HashMap<String, Long> spilledOffsets = new HashMap<>();
+        HashMap<String, Integer> savedOffsets = new HashMap<>();
+        SnapshotFile.Mapping savedSnapshot;
+        synchronized (lock) {
+            for (Map.Entry<String, ResidentValue> residentValue : residentValues.entrySet()) {
+                if (residentValue.getKey().startsWith(keyPrefix)) {
+                    residentKeysAndValues.put(residentValue.getKey(), residentValue.getValue().value);
+                }
+            }
+            for (Map.Entry<String, Long> spilledValue : spilledValues.entrySet()) {
+                if (spilledValue.getKey().startsWith(keyPrefix)) {
+                    spilledOffsets.put(spilledValue.getKey(), spilledValue.getValue());
+                }
+            }
+            for (Map.Entry<String, Integer> savedValue : savedValues.entrySet()) {
+                if (savedValue.getKey().startsWith(keyPrefix)) {
+                    savedOffsets.put(savedValue.getKey(), savedValue.getValue());
+                }
+            }
+            savedSnapshot = this.savedSnapshot;
+            // The offsets stay valid until it's unlocked
+            spillFile.lockForReading();
+        }
+
+        try {
+            for (Map.Entry<String, String> residentValue : residentKeysAndValues.entrySet()) {
+                visitor.visit(residentValue.getKey(), residentValue.getValue());
+            }
+            for (Map.Entry<String, Long> spilledOffset : spilledOffsets.entrySet()) {
+                try {
+                    visitor.visit(spilledOffset.getKey(), spillFile.read(spilledOffset.getValue()));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read the spilled value of '" + spilledOffset.getKey() + "': " + e);
+                }
+            }
+            for (Map.Entry<String, Integer> savedOffset : savedOffsets.entrySet()) {
+                try {
+                    visitor.visit(savedOffset.getKey(), savedSnapshot.read(savedOffset.getValue()));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read the saved value of '" + savedOffset.getKey() + "': " + e);
+                }
+            }
+        } finally {
+            spillFile.unlockForReading();
+        }
+    }
+
+    /**
+     * Deletes the spilled values from the device
+     */
+    void close() {
+        synchronized (lock) {
+            spillFile.delete();
+            spilledValues.clear();
+            savedValues.clear();
+            savedSnapshot = null;
+        }
+    }
+
+    /**
+     * Reads a value that isn't in memory, outside of the lock, and brings it back into memory (unless it has changed meanwhile)
+     */
+    private String readBack(String key) {
+        Long spilledOffset;
+        Integer savedOffset = null;
+        SnapshotFile.Mapping savedSnapshot = null;
+        synchronized (lock) {
+            ResidentValue residentValue = residentValues.get(key);
+            if (residentValue != null) {
+                // Was read back meanwhile
+                residentValue.lastAccess = accessClock.incrementAndGet();
+                return residentValue.value;
+            }
+            spilledOffset = spilledValues.get(key);
+            if (spilledOffset != null) {
+                // The offset stays valid until it's unlocked
+                spillFile.lockForReading();
+            } else {
+                savedOffset = savedValues.get(key);
+                if (savedOffset == null) {
+                    return null;
+                }
+                savedSnapshot = this.savedSnapshot;
+            }
+        }
+
+        String value;
+        try {
+            value = spilledOffset != null ? spillFile.read(spilledOffset) : savedSnapshot.read(savedOffset);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the value of '" + key + "' from the device: " + e);
+            return null;
+        } finally {
+            if (spilledOffset != null) {
+                spillFile.unlockForReading();
+            }
+        }
+
+        synchronized (lock) {
+            boolean isUnchanged = spilledOffset != null ? spilledOffset.equals(spilledValues.get(key)) : savedOffset.equals(savedValues.get(key));
+            if (isUnchanged) {
+                put(key, value);
+                evictOverBudget();
+            }
+        }
+
+        return value;
+    }
+
+    // The following are called while holding the lock
+
+    private void put(String key, String value) {
+        ResidentValue previousValue = residentValues.put(key, new ResidentValue(value, accessClock.incrementAndGet()));
+        if (previousValue != null) {
+            residentBytes -= sizeOf(key, previousValue.value);
+        } else {
+            discardSpilled(key);
+            savedValues.remove(key);
+        }
+        residentBytes += sizeOf(key, value);
+    }
+
+    private String remove(String key) {
+        ResidentValue residentValue = residentValues.remove(key);
+        if (residentValue != null) {
+            residentBytes -= sizeOf(key, residentValue.value);
+            return residentValue.value;
+        }
+
+        String value;
+        Long offset = spilledValues.get(key);
+        if (offset == null) {
+            Integer savedOffset = savedValues.remove(key);
+            if (savedOffset == null) {
+                return null;
+            }
+            try {
+                return savedSnapshot.read(savedOffset);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read the saved value of '" + key + "': " + e);
+                return "";
+            }
+        }
+        try {
+            value = spillFile.read(offset);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the spilled value of '" + key + "': " + e);
+            value = "";
+        }
+        discardSpilled(key);
+
+        return value;
+    }
+
+    private void discardSpilled(String key) {
+        Long offset = spilledValues.remove(key);
+        if (offset == null) {
+            return;
+        }
+        try {
+            spillFile.discard(offset);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to discard the spilled value of '" + key + "': " + e);
+        }
+    }
+
+    private void evictOverBudget() {
+        if (residentBytes <= memoryBudgetBytes) {
+            return;
+        }
+
+        ArrayList<EvictionCandidate> candidates = new ArrayList<>(residentValues.size());
+        for (Map.Entry<String, ResidentValue> residentValue : residentValues.entrySet()) {
+            candidates.add(new EvictionCandidate(residentValue.getKey(), residentValue.getValue().value, residentValue.getValue().lastAccess));
+        }
+        // Least recently used first
+        Collections.sort(candidates);
+
+        long targetBytes = (long) (memoryBudgetBytes * EVICTION_TARGET);
+        for (EvictionCandidate candidate : candidates) {
+            if (residentBytes <= targetBytes) {
+                break;
+            }
+            try {
+                // Spilled before it leaves the memory, so a read without the lock finds it in either
+                spilledValues.put(candidate.key, spillFile.append(candidate.value));
+            } catch (IOException e) {
+                // Better over the budget than losing values
+                Log.e(TAG, "Failed to spill values to the device: " + e);
+                return;
+            }
+            residentValues.remove(candidate.key);
+            residentBytes -= sizeOf(candidate.key, candidate.value);
+        }
+
+        if (spillFile.isMostlyGarbage()) {
+            compactSpillFile();
+        }
+    }
+
+    private void compactSpillFile() {
+        try {
+            Map<String, Long> compactedOffsets = spillFile.compact(spilledValues);
+            if (compactedOffsets != null) {
+                spilledValues.putAll(compactedOffsets);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact the spilled values: " + e);
+        }
+    }
+
+    private static long sizeOf(String key, String value) {
+        // Java strings take 2 bytes per character
+        return ENTRY_OVERHEAD_BYTES + 2L * (key.length() + value.length());
+    }
+}
@@ -1,36 +1,49 @@
 package com.perrchick.onlinesharedpreferences;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Log;
 
 import com.backendless.Backendless;
-import com.backendless.BackendlessCollection;
-import com.backendless.async.callback.AsyncCallback;
-import com.backendless.async.callback.BackendlessCallback;
 import com.backendless.exceptions.BackendlessException;
-import com.backendless.exceptions.BackendlessFault;
-import com.backendless.persistence.BackendlessDataQuery;
-import com.perrchick.onlinesharedpreferences.backendless.BackendlessSyncedObject;
-
+import com.perrchick.onlinesharedpreferences.backend.CoalescingBackend;
+import com.perrchick.onlinesharedpreferences.backend.InMemoryBackend;
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+import com.perrchick.onlinesharedpreferences.backendless.BackendlessBackend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by perrchick on 1/17/16.
  */
 public class OnlineSharedPreferences {
-    private static final String SAVED_OBJECT_KEY = "key";
-    private static final String SAVED_OBJECT_VALUE = "value";
-    private static final String SAVED_OBJECT_PACKAGE_NAME = "packageName";
-
     private static final String TAG = OnlineSharedPreferences.class.getSimpleName();
     private static boolean isInitialized = false;
-    BackendlessSyncedObject syncedObject;
-    // This object will contain all the <key,value> combinations
-    private BackendlessSyncedObject innerObject = null;
+    // Shared by all the instances, so concurrent reads of the same key are sent only once
+    private static PreferencesBackend backendlessBackend;
+    // Package name -> the read cache of its Backendless instances, shared like their backend and journal,
+    // so a commit through any instance invalidates what the others have cached
+    private static final HashMap<String, PreferencesCache> backendlessCaches = new HashMap<>();
+    // Backendless won't return more than 100 objects per page
+    private static final int PAGE_SIZE = 100;
+    private static final int DEFAULT_PAGES_IN_FLIGHT = 4;
+    // To prevent overriding by similar keys, there's another foreign key that will make this combination unique
+    private final String packageName;
+    // Where the committed changes go to
+    private final PreferencesBackend backend;
+    // Keeps the commits on disk until they're uploaded, null when committing directly to the backend
+    private CommitJournal journal;
+    // Serves repeated reads without going to the cloud, invalidated by local commits and removals
+    private final PreferencesCache cache;
+    // Collects the changes made by putString(...) until they are committed
+    private final Editor defaultEditor;
 
     /**
      * Gets a new instance of OnlineSharedPreferences, managed by Backendless
@@ -50,10 +63,6 @@ public class OnlineSharedPreferences {
      * @return OnlineSharedPreferences new instance
      */
     public static OnlineSharedPreferences getOnlineSharedPreferences(Context context, String appId, String secretKey) {
-        return new OnlineSharedPreferences(context, appId, secretKey);
-    }
-
-    private OnlineSharedPreferences(Context context, String appId, String secretKey) {
         Log.v(TAG, "Initializing integration with Backendless");
         if (!isInitialized) {
             Backendless.initApp(context, appId, secretKey, "v1");
@@ -61,15 +70,73 @@ public class OnlineSharedPreferences {
             isInitialized = true;
         }
 
-        this.innerObject = new BackendlessSyncedObject(context.getPackageName());
+        if (backendlessBackend == null) {
+            backendlessBackend = new CoalescingBackend(new BackendlessBackend());
+        }
+
+        OnlineSharedPreferences onlineSharedPreferences = new OnlineSharedPreferences(context, backendlessBackend, backendlessCacheOf(context.getPackageName()));
+        onlineSharedPreferences.journal = CommitJournal.of(context, "backendless", onlineSharedPreferences.packageName, onlineSharedPreferences.backend);
+
+        return onlineSharedPreferences;
+    }
+
+    /**
+     * Gets a new instance of OnlineSharedPreferences, that commits directly (without a journal) into the given backend (i.e. {@link InMemoryBackend} for working offline)
+     * @param context The application's context
+     * @param backend The backend that will save the committed values
+     * @return OnlineSharedPreferences new instance
+     */
+    public static OnlineSharedPreferences getOnlineSharedPreferences(Context context, PreferencesBackend backend) {
+        // Its own cache, nothing else writes through this instance's backend wrapper
+        return new OnlineSharedPreferences(context, new CoalescingBackend(backend), new PreferencesCache());
+    }
+
+    private static synchronized PreferencesCache backendlessCacheOf(String packageName) {
+        PreferencesCache cache = backendlessCaches.get(packageName);
+        if (cache == null) {
+            cache = new PreferencesCache();
+            backendlessCaches.put(packageName, cache);
+        }
+
+        return cache;
+    }
+
+    private OnlineSharedPreferences(Context context, PreferencesBackend backend, PreferencesCache cache) {
+        this.packageName = context.getPackageName();
+        this.backend = backend;
+        this.cache = cache;
+        this.defaultEditor = new Editor();
     }
 
     public interface GetAllObjectsCallback {
         void done(HashMap<String, String> objects, BackendlessException e);
     }
+    public interface GetAllObjectsPageCallback {
+        /**
+         * Called for every page that arrives
+         * @param objects   The objects of the page
+         * @return true to keep fetching, false to stop
+         */
+        boolean onPage(HashMap<String, String> objects);
+
+        /**
+         * Called once, after the last page (or on failure)
+         * @param objectsCount   The number of objects that were delivered
+         * @param e              The failure, if any
+         */
+        void done(int objectsCount, BackendlessException e);
+    }
     public interface GetStringCallback {
         void done(String value, BackendlessException e);
     }
+    public interface GetStringsCallback {
+        /**
+         * @param values        All the requested keys, a missing key has a null value
+         * @param missingKeys   The requested keys that have no value
+         * @param e             The failure, if any
+         */
+        void done(Map<String, String> values, Set<String> missingKeys, BackendlessException e);
+    }
     public interface CommitCallback {
         void done(BackendlessException e);
     }
@@ -79,12 +146,12 @@ public class OnlineSharedPreferences {
 
     /**
      * Puts a string in the shared preferences, but it doesn't upload the value yet, until {@link #commitInBackground(CommitCallback)} is being called.
+     * Any number of strings may be put before committing, they will all be uploaded as one batch.
      * @param key      The key that identifies the value
      * @param value    The String value that should persist online
      */
     public OnlineSharedPreferences putString(String key, String value) {
-        innerObject.setKey(key);
-        innerObject.setValue(value);
+        defaultEditor.putString(key, value);
 
         return this;
     }
@@ -103,65 +170,32 @@ public class OnlineSharedPreferences {
      * @param removeCallback    The callback object that will be called after the remove is done
      */
     public void remove(final String key, final RemoveCallback removeCallback) {
-        findKey(key, new BackendlessCallback<BackendlessCollection<BackendlessSyncedObject>>() {
-            @Override
-            public void handleResponse(BackendlessCollection<BackendlessSyncedObject> objects) {
-                // Found?
-                if (objects != null && objects.getData().size() > 0) {
-                    for (BackendlessSyncedObject syncedObject : objects.getData()) {
-                        Backendless.Persistence.of(BackendlessSyncedObject.class).remove(syncedObject, new BackendlessCallback<Long>() {
-                            @Override
-                            public void handleResponse(Long aLong) {
-                                Log.v(TAG, "... Removed '" + key + "'");
-                                if (removeCallback != null) {
-                                    removeCallback.done(null);
-                                }
-                            }
-
-                            @Override
-                            public void handleFault(BackendlessFault fault) {
-                                Log.e(TAG, "... Failed to remove '" + key + "'");
-                                if (removeCallback != null) {
-                                    removeCallback.done(new BackendlessException(fault.getCode(), fault.getMessage()));
-                                }
-                            }
-                        });
-                    }
-                }
-            }
+        Log.v(TAG, "Removing '" + key + "'...");
 
+        HashSet<String> removals = new HashSet<>(1);
+        removals.add(key);
+        // Goes through the journal like any commit, so it's never reordered with journaled puts of the same key
+        commitBatch(new HashMap<String, String>(), removals, new CommitCallback() {
             @Override
-            public void handleFault(BackendlessFault fault) {
-                Log.e(TAG, "... Failed to remove '" + key + "'");
+            public void done(BackendlessException e) {
+                if (e == null) {
+                    Log.v(TAG, "... Removed '" + key + "'");
+                } else {
+                    Log.e(TAG, "... Failed to remove '" + key + "'");
+                }
                 if (removeCallback != null) {
-                    removeCallback.done(new BackendlessException(fault.getCode(), fault.getMessage()));
+                    removeCallback.done(e);
                 }
             }
         });
-
-        Log.v(TAG, "Removing '" + key + "'...");
-    }
-
-    private void findKey(String key, AsyncCallback<BackendlessCollection<BackendlessSyncedObject>> callback) {
-        // Has two keys (package name + key)
-        final BackendlessDataQuery query = new BackendlessDataQuery(SAVED_OBJECT_PACKAGE_NAME + " = '" + innerObject.getPackageName() + "'" +
-                " and " + SAVED_OBJECT_KEY + " = '" + key + "'");
-        Log.v(TAG, "Getting string for key '" + key + "'...");
-        Backendless.Persistence.of(BackendlessSyncedObject.class).find(query, callback);
-     }
-
-    private void findKey(String key, String value, AsyncCallback<BackendlessCollection<BackendlessSyncedObject>> callback) {
-        // Has two keys (package name + key)
-        final BackendlessDataQuery query = new BackendlessDataQuery(SAVED_OBJECT_PACKAGE_NAME + " = '" + innerObject.getPackageName() + "'" +
-                " and " + SAVED_OBJECT_KEY + " = '" + key + "'" + " and " + SAVED_OBJECT_VALUE + " = '" + value + "'");
-        Log.v(TAG, "Getting string for key '" + key + "'...");
-        Backendless.Persistence.of(BackendlessSyncedObject.class).find(query, callback);
     }
 
     /**
-     * Gets a string from the cloud
+     * Gets a string from the cloud, or from the cache if it was read recently.
+     * A value that was committed but not uploaded yet is returned as well.
      * @param key         The key that identifies the value
      * @param callback    The callback that should be called after the value is fetched
+     * @throws IllegalArgumentException if the key is null
      */
     public void getString(final String key, final GetStringCallback callback) {
         // Guard
@@ -169,32 +203,97 @@ public class OnlineSharedPreferences {
             return;
         }
 
-        Log.v(TAG, "Getting string for key '" + key + "'...");
-        findKey(key, new BackendlessCallback<BackendlessCollection<BackendlessSyncedObject>>() {
+        getStrings(Collections.singleton(key), new GetStringsCallback() {
             @Override
-            public void handleResponse(BackendlessCollection<BackendlessSyncedObject> objects) {
-                if (objects.getData().size() > 0) {
-                    String value = null;
-                    if (objects.getData().get(0).getValue() instanceof String) {
-                        value = (String) objects.getData().get(0).getValue();
-                    }
-                    callback.done(value, null);
-                    Log.v(TAG, "... Got object for key '" + key + "'");
+            public void done(Map<String, String> values, Set<String> missingKeys, BackendlessException e) {
+                if (e == null) {
+                    callback.done(values.get(key), null);
                 } else {
-                    Log.e(TAG, "... Failed to get object for key '" + key + "'");
+                    callback.done(null, e);
                 }
             }
+        });
+    }
+
+    /**
+     * Gets many strings at once, all the keys that aren't cached are fetched from the cloud in a single query (per chunk of keys).
+     * Committed values that are still waiting in the journal (i.e. while offline) are served from there.
+     * @param keys        The keys that identify the values
+     * @param callback    The callback that should be called after all the values are fetched
+     * @throws IllegalArgumentException if one of the keys is null
+     */
+    public void getStrings(Collection<String> keys, final GetStringsCallback callback) {
+        // Guard
+        if (callback == null){
+            return;
+        }
 
+        // The cache (and the journal) can't hold a null key
+        for (String key : keys) {
+            if (key == null) {
+                throw new IllegalArgumentException("A key can't be null");
+            }
+        }
+
+        final HashMap<String, String> values = new HashMap<>(keys.size());
+        final HashSet<String> missingKeys = new HashSet<>();
+        final ArrayList<String> keysToFetch = new ArrayList<>(keys.size());
+        Map<String, String> pendingEntries = getPendingEntries(keys);
+        for (String key : keys) {
+            if (pendingEntries.containsKey(key)) {
+                // The journal is newer than the cloud and the cache
+                values.put(key, pendingEntries.get(key));
+                if (pendingEntries.get(key) == null) {
+                    missingKeys.add(key);
+                }
+                continue;
+            }
+
+            PreferencesCache.Entry cachedEntry = cache.get(key);
+            if (cachedEntry == null) {
+                keysToFetch.add(key);
+            } else {
+                values.put(key, cachedEntry.getValue());
+                if (cachedEntry.getValue() == null) {
+                    missingKeys.add(key);
+                }
+            }
+        }
+
+        if (keysToFetch.isEmpty()) {
+            callback.done(values, missingKeys, null);
+            return;
+        }
+
+        Log.v(TAG, "Getting strings for " + keysToFetch.size() + " keys...");
+        final long cacheGeneration = cache.getGeneration();
+        backend.get(packageName, keysToFetch, new PreferencesBackend.Callback<Map<String, String>>() {
             @Override
-            public void handleFault(BackendlessFault fault) {
-                Log.e(TAG, "... Failed to get object for key '" + key + "'");
-                callback.done(null ,new BackendlessException(fault.getCode(), fault.getMessage()));
+            public void done(Map<String, String> fetchedValues, Exception e) {
+                if (e != null) {
+                    Log.e(TAG, "... Failed to get strings");
+                    callback.done(null, null, toBackendlessException(e));
+                    return;
+                }
+
+                for (String key : keysToFetch) {
+                    String value = fetchedValues.get(key);
+                    // Missing keys are cached as well, there's no need to look for them again
+                    cache.put(key, value, cacheGeneration);
+                    values.put(key, value);
+                    if (value == null) {
+                        missingKeys.add(key);
+                    }
+                }
+                Log.v(TAG, "... Got " + fetchedValues.size() + " strings, " + missingKeys.size() + " keys are missing");
+                callback.done(values, missingKeys, null);
             }
         });
     }
 
     /**
-     * Gets all objects in the online shared preferences
+     * Gets all objects in the online shared preferences, or from the cache if they were read recently.
+     * Committed values that are still waiting in the journal are applied on top.
      * @param callback
      */
     public void getAllObjects(final GetAllObjectsCallback callback) {
@@ -203,25 +302,57 @@ public class OnlineSharedPreferences {
             return;
         }
 
+        HashMap<String, String> cachedObjects = cache.getAll();
+        if (cachedObjects != null) {
+            callback.done(withPendingEntries(cachedObjects), null);
+            return;
+        }
+
         Log.v(TAG, "Getting all objects...");
-        final BackendlessDataQuery query = new BackendlessDataQuery(SAVED_OBJECT_PACKAGE_NAME + " = '" + innerObject.getPackageName() + "'");
-        Backendless.Persistence.of(BackendlessSyncedObject.class).find(query, new BackendlessCallback<BackendlessCollection<BackendlessSyncedObject>>() {
+        final long cacheGeneration = cache.getGeneration();
+        final HashMap<String, String> savedObjects = new HashMap<>();
+        new PagedFetch(backend, packageName, PAGE_SIZE, DEFAULT_PAGES_IN_FLIGHT, new GetAllObjectsPageCallback() {
             @Override
-            public void handleResponse(BackendlessCollection<BackendlessSyncedObject> objects) {
-                HashMap<String, String> savedObjects = new HashMap<>(objects.getData().size());
-                for (BackendlessSyncedObject syncedObject : objects.getData()) {
-                    savedObjects.put(syncedObject.getKey(), syncedObject.getValue().toString());
+            public boolean onPage(HashMap<String, String> objects) {
+                for (Map.Entry<String, String> object : objects.entrySet()) {
+                    // A duplication that starts a page isn't the key's first (oldest) object, the backend writes to that one
+                    if (!savedObjects.containsKey(object.getKey())) {
+                        savedObjects.put(object.getKey(), object.getValue());
+                    }
                 }
-                Log.v(TAG, "... Got all (" + objects.getData().size() + ") objects");
-                callback.done(savedObjects, null);
+                return true;
             }
 
             @Override
-            public void handleFault(BackendlessFault fault) {
-                Log.e(TAG, "... Failed to get all objects");
-                callback.done(null ,new BackendlessException(fault.getCode(), fault.getMessage()));
+            public void done(int objectsCount, BackendlessException e) {
+                if (e == null) {
+                    cache.putAll(savedObjects, cacheGeneration);
+                    Log.v(TAG, "... Got all (" + objectsCount + ") objects");
+                    callback.done(withPendingEntries(savedObjects), null);
+                } else {
+                    Log.e(TAG, "... Failed to get all objects");
+                    callback.done(null, e);
+                }
             }
-        });
+        }).start();
+    }
+
+    /**
+     * Streams all objects in the online shared preferences, page by page, without collecting them all in memory.
+     * A few pages are fetched ahead, concurrently, and every page is delivered as soon as it arrives (not necessarily in order).
+     * Pages come straight from the cloud, committed values that weren't uploaded yet aren't included.
+     * @param maxObjectsInMemory   The maximum number of objects that may be fetched and not delivered yet, limits the number of concurrent pages
+     * @param callback             The callback that will be called for every page, and once when all the pages are delivered
+     */
+    public void getAllObjects(int maxObjectsInMemory, final GetAllObjectsPageCallback callback) {
+        // Guard
+        if (callback == null){
+            return;
+        }
+
+        int pageSize = Math.max(1, Math.min(PAGE_SIZE, maxObjectsInMemory));
+        Log.v(TAG, "Streaming all objects...");
+        new PagedFetch(backend, packageName, pageSize, maxObjectsInMemory / pageSize, callback).start();
     }
 
     /**
@@ -232,107 +363,188 @@ public class OnlineSharedPreferences {
     }
 
     /**
-     * Commits the changes to the cloud asynchronously
-     * @param commitCallback    The callback object that will be called when the commit is done
+     * Commits all the pending changes (made by {@link #putString(String, String)}) to the cloud asynchronously.
+     * The changes are journaled on the device first, if the upload fails they'll be uploaded again after a backoff, or when the network is back.
+     * Until then, reads of this instance already return the new values.
+     * @param commitCallback    The callback object that will be called when the commit is in the cloud (or failed to get journaled)
      */
     public void commitInBackground(final CommitCallback commitCallback) {
-        Log.v(TAG, "Committing in background...");
+        defaultEditor.commitInBackground(commitCallback);
+    }
+
+    /**
+     * Collects any number of puts and removes, and flushes them to the cloud as one batch.
+     * Unlike {@link SharedPreferences.Editor}, nothing is persisted until {@link #commitInBackground(CommitCallback)} is called.
+     */
+    public class Editor {
+        // Keeps the insertion order, the last change of each key wins
+        private final LinkedHashMap<String, String> pendingPuts = new LinkedHashMap<>();
+        private final HashSet<String> pendingRemovals = new HashSet<>();
+
+        private Editor() {
+        }
 
-        /*
-         * I hope there could be a more efficient way, I might solve it with Backendless by configuring the object to have two unique keys from 'packageName" + 'key'.
-         * But I still wanted to have the challenge.
-         *
-         * Will check duplications, delete if any, and save.
+        /**
+         * Puts a string in the editor, it will be uploaded in the next commit
+         * @param key      The key that identifies the value
+         * @param value    The String value that should persist online
          */
+        public synchronized Editor putString(String key, String value) {
+            pendingRemovals.remove(key);
+            pendingPuts.put(key, value);
 
-        // (1) Find duplications
-        findKey(innerObject.getKey(), new BackendlessCallback<BackendlessCollection<BackendlessSyncedObject>>() {
-            @Override
-            public void handleResponse(BackendlessCollection<BackendlessSyncedObject> backendlessSyncedObjectBackendlessCollection) {
-                final List<BackendlessSyncedObject> objects = backendlessSyncedObjectBackendlessCollection.getData();
-
-                // (2) Duplications found?
-                if (objects.size() > 0) {
-                    // (3) Delete duplications (disallowed) before add new object
-                    boolean finished = false;
-                    ExecutorService es = Executors.newCachedThreadPool();
-                    for (int i = 0; i < objects.size(); i++) {
-                        final int index = i; // must be final because another thread "would like" to use that resource
-                        es.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                // Should be synchronously
-                                Backendless.Persistence.of(BackendlessSyncedObject.class).remove(objects.get(index));
-                            }
-                        });
-                    }
-                    es.shutdown();
-                    try {
-                        finished = es.awaitTermination(1, TimeUnit.MINUTES);
-                    } catch (InterruptedException waitingException) {
-                        waitingException.printStackTrace();
-                    }
-                        /* all tasks have finished or the time has been reached */
-
-                    if (finished) {
-                        // (3.1) Save...
-                        BackendlessSyncedObject newObject = new BackendlessSyncedObject(innerObject.getPackageName());
-                        newObject.setKey(innerObject.getKey());
-                        newObject.setValue(innerObject.getValue().toString());
-                        Backendless.Persistence.of(BackendlessSyncedObject.class).save(newObject, new BackendlessCallback<BackendlessSyncedObject>() {
-                            @Override
-                            public void handleResponse(BackendlessSyncedObject backendlessSyncedObject) {
-                                // (4) Notify for completion with callback
-                                if (commitCallback != null) {
-                                    commitCallback.done(null);
-                                }
-                            }
-
-                            @Override
-                            public void handleFault(BackendlessFault fault) {
-                                // (4) Notify for completion with callback
-                                if (commitCallback != null) {
-                                    commitCallback.done(new BackendlessException(fault.getCode(), fault.getMessage()));
-                                }
-                            }
-                        });
-                    } else {
-                        if (commitCallback != null) {
-                            commitCallback.done(new BackendlessException("-1", "Couldn't delete (duplications) and save"));
-                        }
-                    }
-                } else { // Already unique, brand new
-                    // (3) Save original object...
-                    Backendless.Persistence.of(BackendlessSyncedObject.class).save(innerObject, new BackendlessCallback<BackendlessSyncedObject>() {
-                        @Override
-                        public void handleResponse(BackendlessSyncedObject backendlessSyncedObject) {
-                            // (4) Notify for completion with callback
-                            Log.v(TAG, "... Committed in background");
-                            if (commitCallback != null) {
-                                commitCallback.done(null);
-                            }
-                        }
-
-                        @Override
-                        public void handleFault(BackendlessFault fault) {
-                            // (4) Notify for completion with callback
-                            Log.e(TAG, "... Failed to commit in background");
-                            if (commitCallback != null) {
-                                commitCallback.done(new BackendlessException(fault.getCode(), fault.getMessage()));
-                            }
-                        }
-                    });
-                }
+            return this;
+        }
+
+        /**
+         * Marks the key for removal, it will be removed in the next commit
+         * @param key      The key that identifies the value
+         */
+        public synchronized Editor remove(String key) {
+            pendingPuts.remove(key);
+            pendingRemovals.add(key);
+
+            return this;
+        }
+
+        /**
+         * Discards all the pending changes
+         */
+        public synchronized Editor clear() {
+            pendingPuts.clear();
+            pendingRemovals.clear();
+
+            return this;
+        }
+
+        /**
+         * Commits the changes to the cloud asynchronously without a callback
+         */
+        public void commitInBackground() {
+            commitInBackground(null);
+        }
+
+        /**
+         * Commits all the pending changes to the cloud asynchronously, as a single batch
+         * @param commitCallback    The callback object that will be called once, when the whole batch is done
+         */
+        public void commitInBackground(final CommitCallback commitCallback) {
+            final HashMap<String, String> puts;
+            final HashSet<String> removals;
+            synchronized (this) {
+                puts = new LinkedHashMap<>(pendingPuts);
+                removals = new HashSet<>(pendingRemovals);
+                pendingPuts.clear();
+                pendingRemovals.clear();
             }
 
-            @Override
-            public void handleFault(BackendlessFault fault) {
-                // (4) Notify for completion with callback
-                Log.e(TAG, "... Failed to commit in background");
+            if (puts.isEmpty() && removals.isEmpty()) {
                 if (commitCallback != null) {
-                    commitCallback.done(new BackendlessException(fault.getCode(), fault.getMessage()));
+                    commitCallback.done(null);
+                }
+                return;
+            }
+
+            Log.v(TAG, "Committing " + puts.size() + " puts and " + removals.size() + " removals in background...");
+            commitBatch(puts, removals, commitCallback);
+        }
+    }
+
+    /**
+     * Gets a new editor, the changes made with it are independent of {@link #putString(String, String)}
+     * @return A new editor
+     */
+    public Editor edit() {
+        return new Editor();
+    }
+
+    private void commitBatch(final HashMap<String, String> puts, final HashSet<String> removals, final CommitCallback commitCallback) {
+        // A single idempotent upsert, removed keys are marked with null values
+        final HashMap<String, String> entries = new HashMap<>(puts);
+        for (String key : removals) {
+            entries.put(key, null);
+        }
+
+        invalidateCache(entries.keySet());
+        if (journal != null) {
+            // Returns immediately, the journal uploads in the background and retries after network failures
+            journal.append(entries, new CommitCallback() {
+                @Override
+                public void done(BackendlessException e) {
+                    onCommitted(entries, e, commitCallback);
                 }
+            });
+            return;
+        }
+
+        backend.upsert(packageName, entries, new PreferencesBackend.Callback<Void>() {
+            @Override
+            public void done(Void result, Exception e) {
+                onCommitted(entries, toBackendlessException(e), commitCallback);
             }
         });
     }
-}
\ No newline at end of file
+
+    private void onCommitted(HashMap<String, String> entries, BackendlessException e, CommitCallback commitCallback) {
+        // Reads that were sent during the commit might have cached the old values
+        invalidateCache(entries.keySet());
+        if (e == null) {
+            Log.v(TAG, "... Committed in background");
+        } else {
+            Log.e(TAG, "... Failed to commit in background");
+        }
+        if (commitCallback != null) {
+            commitCallback.done(e);
+        }
+    }
+
+    private Map<String, String> getPendingEntries(Collection<String> keys) {
+        if (journal == null) {
+            return Collections.emptyMap();
+        }
+
+        return journal.getPendingEntries(keys);
+    }
+
+    /**
+     * Applies the journaled entries that weren't uploaded yet, on top of the objects from the cloud (or the cache)
+     */
+    private HashMap<String, String> withPendingEntries(HashMap<String, String> objects) {
+        if (journal == null) {
+            return objects;
+        }
+
+        for (Map.Entry<String, String> pendingEntry : journal.getPendingEntries().entrySet()) {
+            if (pendingEntry.getValue() == null) {
+                objects.remove(pendingEntry.getKey());
+            } else {
+                objects.put(pendingEntry.getKey(), pendingEntry.getValue());
+            }
+        }
+
+        return objects;
+    }
+
+    private void invalidateCache(Collection<String> keys) {
+        for (String key : keys) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Gets the read cache, for tuning time to live per key or for reading its hit / miss counters.
+     * The Backendless instances of the same package share it.
+     * @return The cache that serves {@link #getString(String, GetStringCallback)} and {@link #getAllObjects(GetAllObjectsCallback)}
+     */
+    public PreferencesCache getCache() {
+        return cache;
+    }
+
+    static BackendlessException toBackendlessException(Exception e) {
+        if (e == null || e instanceof BackendlessException) {
+            return (BackendlessException) e;
+        }
+
+        return new BackendlessException("-1", e.getMessage());
+    }
+}
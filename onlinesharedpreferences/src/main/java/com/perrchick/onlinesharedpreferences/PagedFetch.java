@@ -0,0 +1,105 @@
+package com.perrchick.onlinesharedpreferences;
+
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Fetches all the pages of a package, a few pages ahead at a time, and delivers every page as soon as it arrives.
+ * No more than 'maxPagesInFlight' pages are requested (and held in memory) at the same time,
+ * a page counts until it's delivered, not just until it arrives.
+ */
+class PagedFetch {
+    private final PreferencesBackend backend;
+    private final String packageName;
+    private final int pageSize;
+    private final int maxPagesInFlight;
+    private final OnlineSharedPreferences.GetAllObjectsPageCallback callback;
+
+    private int nextOffset;
+    private int totalCount = -1;
+    private int pagesInFlight;
+    private int deliveredCount;
+    private boolean isFinished;
+
+    PagedFetch(PreferencesBackend backend, String packageName, int pageSize, int maxPagesInFlight, OnlineSharedPreferences.GetAllObjectsPageCallback callback) {
+        this.backend = backend;
+        this.packageName = packageName;
+        this.pageSize = pageSize;
+        this.maxPagesInFlight = Math.max(1, maxPagesInFlight);
+        this.callback = callback;
+    }
+
+    void start() {
+        // The first page tells how many pages there are
+        synchronized (this) {
+            pagesInFlight++;
+            nextOffset = pageSize;
+        }
+        request(0);
+    }
+
+    private void request(int offset) {
+        backend.listPage(packageName, offset, pageSize, new PreferencesBackend.Callback<PreferencesBackend.Page>() {
+            @Override
+            public void done(PreferencesBackend.Page page, Exception e) {
+                onPage(page, e);
+            }
+        });
+    }
+
+    private void onPage(PreferencesBackend.Page page, Exception e) {
+        synchronized (this) {
+            if (isFinished) {
+                pagesInFlight--;
+                return;
+            }
+            if (e != null) {
+                pagesInFlight--;
+                isFinished = true;
+            }
+        }
+
+        if (e != null) {
+            callback.done(deliveredCount, OnlineSharedPreferences.toBackendlessException(e));
+            return;
+        }
+
+        boolean shouldContinue = true;
+        // Pages are delivered one at a time, even if they arrive together
+        synchronized (callback) {
+            if (!page.getEntries().isEmpty()) {
+                shouldContinue = callback.onPage(new HashMap<>(page.getEntries()));
+            }
+        }
+
+        ArrayList<Integer> offsetsToRequest = new ArrayList<>(maxPagesInFlight);
+        boolean isDone;
+        synchronized (this) {
+            // Only now the page is out of memory, counting it out on arrival would let one more page in while it waits to be delivered
+            pagesInFlight--;
+            deliveredCount += page.getEntries().size();
+            totalCount = page.getTotalCount();
+            while (shouldContinue && pagesInFlight < maxPagesInFlight && nextOffset < totalCount) {
+                offsetsToRequest.add(nextOffset);
+                nextOffset += pageSize;
+                pagesInFlight++;
+            }
+
+            isDone = !isFinished && (!shouldContinue || (pagesInFlight == 0 && nextOffset >= totalCount));
+            if (isDone) {
+                isFinished = true;
+            }
+        }
+
+        if (isDone) {
+            callback.done(deliveredCount, null);
+            return;
+        }
+
+        for (int offset : offsetsToRequest) {
+            request(offset);
+        }
+    }
+}
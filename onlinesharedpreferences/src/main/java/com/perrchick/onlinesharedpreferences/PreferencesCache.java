@@ -0,0 +1,218 @@
+package com.perrchick.onlinesharedpreferences;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded in-memory cache for values that were read from the cloud.
+ * The cache is limited by the (estimated) size of its entries in bytes, the least recently used entries are evicted first.
+ * Every entry expires after its time to live, missing keys are cached as well (with a null value).
+ */
+public class PreferencesCache {
+    public static final int DEFAULT_MAX_SIZE_BYTES = 256 * 1024;
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 60 * 1000;
+
+    // Object header + fields, roughly
+    private static final int ENTRY_OVERHEAD_BYTES = 32;
+
+    private final LruCache<String, Entry> entries;
+    private final HashMap<String, Long> timeToLiveOverrides = new HashMap<>();
+    private final int maxSizeBytes;
+    private long defaultTimeToLiveMillis;
+
+    // The result of the last 'get all', kept only if it's small enough
+    private HashMap<String, String> allObjects;
+    private long allObjectsExpirationTime;
+
+    // Increased on every invalidation, to prevent responses of older requests from being cached
+    private long generation;
+    private long hitCount;
+    private long missCount;
+
+    public static class Entry {
+        private final String value;
+        private final long expirationTime;
+
+        private Entry(String value, long expirationTime) {
+            this.value = value;
+            this.expirationTime = expirationTime;
+        }
+
+        /**
+         * @return The cached value, or null if the key is known to be missing
+         */
+        public String getValue() {
+            return value;
+        }
+    }
+
+    public PreferencesCache() {
+        this(DEFAULT_MAX_SIZE_BYTES, DEFAULT_TIME_TO_LIVE_MILLIS);
+    }
+
+    /**
+     * @param maxSizeBytes            The maximum (estimated) size of all the cached entries
+     * @param defaultTimeToLiveMillis How long an entry stays valid, unless the key has its own time to live
+     */
+    public PreferencesCache(int maxSizeBytes, long defaultTimeToLiveMillis) {
+        this.maxSizeBytes = maxSizeBytes;
+        this.defaultTimeToLiveMillis = defaultTimeToLiveMillis;
+        this.entries = new LruCache<String, Entry>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                // Qualified, LruCache.sizeOf(K, V) shadows the static helper in here
+                return PreferencesCache.sizeOf(key, entry.value);
+            }
+        };
+    }
+
+    /**
+     * Sets the time to live of a specific key, i.e. a longer one for feature flags that rarely change
+     * @param key                The key that identifies the value
+     * @param timeToLiveMillis   How long the value of that key stays valid
+     */
+    public synchronized void setTimeToLive(String key, long timeToLiveMillis) {
+        timeToLiveOverrides.put(key, timeToLiveMillis);
+    }
+
+    public synchronized void setDefaultTimeToLive(long timeToLiveMillis) {
+        defaultTimeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Gets a valid (not expired) entry
+     * @param key   The key that identifies the value
+     * @return The cached entry, or null if there's no valid entry for that key
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expirationTime <= SystemClock.elapsedRealtime()) {
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Gets a copy of all the objects, if they were all read recently
+     * @return All the cached objects, or null if they're not cached
+     */
+    public synchronized HashMap<String, String> getAll() {
+        if (allObjects != null && allObjectsExpirationTime <= SystemClock.elapsedRealtime()) {
+            allObjects = null;
+        }
+
+        if (allObjects == null) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return new HashMap<>(allObjects);
+    }
+
+    /**
+     * @return The current generation, should be taken before sending the request that its response will be cached
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a value that was read from the cloud
+     * @param key          The key that identifies the value
+     * @param value        The value, or null if the key is missing
+     * @param generation   The generation from the time the request was sent
+     */
+    public synchronized void put(String key, String value, long generation) {
+        if (generation != this.generation) {
+            // Invalidated while the request was on its way, the response might be stale
+            return;
+        }
+
+        entries.put(key, new Entry(value, SystemClock.elapsedRealtime() + timeToLiveOf(key)));
+    }
+
+    /**
+     * Caches all the objects that were read from the cloud, each one of them is cached as a single value as well
+     * @param objects      All the <key,value> combinations
+     * @param generation   The generation from the time the request was sent
+     */
+    public synchronized void putAll(Map<String, String> objects, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+
+        int totalSize = 0;
+        for (Map.Entry<String, String> object : objects.entrySet()) {
+            put(object.getKey(), object.getValue(), generation);
+            totalSize += sizeOf(object.getKey(), object.getValue());
+        }
+
+        // Don't let a huge package take over the whole cache
+        if (totalSize <= maxSizeBytes / 4) {
+            allObjects = new HashMap<>(objects);
+            allObjectsExpirationTime = SystemClock.elapsedRealtime() + defaultTimeToLiveMillis;
+        }
+    }
+
+    /**
+     * Invalidates the cached value of the key, and the cached 'all objects'
+     * @param key   The key that identifies the value
+     */
+    public synchronized void invalidate(String key) {
+        generation++;
+        entries.remove(key);
+        allObjects = null;
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.evictAll();
+        allObjects = null;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return entries.evictionCount();
+    }
+
+    /**
+     * @return The current (estimated) size of all the cached entries, in bytes
+     */
+    public synchronized int getSizeBytes() {
+        return entries.size();
+    }
+
+    private long timeToLiveOf(String key) {
+        Long timeToLive = timeToLiveOverrides.get(key);
+        return timeToLive == null ? defaultTimeToLiveMillis : timeToLive;
+    }
+
+    private static int sizeOf(String key, String value) {
+        // Java strings are UTF-16
+        return ENTRY_OVERHEAD_BYTES + 2 * key.length() + (value == null ? 0 : 2 * value.length());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PreferencesCache{hits=" + hitCount + ", misses=" + missCount + ", evictions=" + entries.evictionCount() + ", size=" + entries.size() + "/" + maxSizeBytes + "}";
+    }
+}
@@ -0,0 +1,177 @@
+package com.perrchick.onlinesharedpreferences;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact binary copy of a package's <key,value> combinations on the device, for serving reads right after a cold start.
+ * Format: [int magic][int version][int count] and for every combination [key][value], strings are [int length][UTF-8 bytes].
+ * It's read through a memory mapping, the values are read one by one when they're needed.
+ */
+class SnapshotFile {
+    private static final String TAG = SnapshotFile.class.getSimpleName();
+    private static final String CHARSET = "UTF-8";
+    private static final int MAGIC = 0x53535053; // "SSPS"
+    private static final int VERSION = 1;
+    // After the magic and the version
+    private static final long COUNT_OFFSET = 8;
+
+    private final File file;
+
+    SnapshotFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * The saved <key,value> combinations, indexed by key. The values stay in the mapped file until they're read.
+     */
+    static class Mapping {
+        private final ByteBuffer buffer;
+        // Key -> the offset of its value in the buffer
+        private final HashMap<String, Integer> valueOffsets;
+
+        private Mapping(ByteBuffer buffer, HashMap<String, Integer> valueOffsets) {
+            this.buffer = buffer;
+            this.valueOffsets = valueOffsets;
+        }
+
+        Map<String, Integer> getValueOffsets() {
+            return valueOffsets;
+        }
+
+        /**
+         * Safe to call from any thread, the mapping's own position isn't touched
+         */
+        String read(int offset) throws IOException {
+            ByteBuffer view = buffer.duplicate();
+            try {
+                view.position(offset);
+                return readString(view);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("No value at " + offset + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Maps the snapshot into memory and indexes its keys, without reading the values
+     * @return The saved combinations, or null if there's no (valid) snapshot
+     */
+    Mapping map() {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                // Stays valid after the file is closed
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    Log.e(TAG, "Unknown snapshot format, ignoring " + file);
+                    return null;
+                }
+
+                int count = buffer.getInt();
+                HashMap<String, Integer> valueOffsets = new HashMap<>(count);
+                for (int i = 0; i < count; i++) {
+                    String key = readString(buffer);
+                    int valueOffset = buffer.position();
+                    // Skips the value
+                    buffer.position(valueOffset + 4 + buffer.getInt());
+                    valueOffsets.put(key, valueOffset);
+                }
+
+                return new Mapping(buffer, valueOffsets);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.e(TAG, "Failed to read the snapshot: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the combinations of a mirror one by one, it doesn't need them all in memory together
+     */
+    private static class EntryWriter implements LocalMirror.Visitor {
+        private final DataOutputStream outputStream;
+        private int count;
+        private IOException failure;
+
+        private EntryWriter(DataOutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void visit(String key, String value) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                writeString(outputStream, key);
+                writeString(outputStream, value);
+                count++;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Replaces the snapshot atomically (a crash in the middle leaves the previous snapshot)
+     * @param mirror   All the <key,value> combinations, they're streamed into the file
+     */
+    void write(LocalMirror mirror) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            // The count is known only at the end
+            outputStream.writeInt(0);
+            EntryWriter entryWriter = new EntryWriter(outputStream);
+            mirror.forEach("", entryWriter);
+            if (entryWriter.failure != null) {
+                throw entryWriter.failure;
+            }
+            outputStream.flush();
+            ByteBuffer count = ByteBuffer.allocate(4);
+            count.putInt(0, entryWriter.count);
+            fileOutputStream.getChannel().write(count, COUNT_OFFSET);
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream outputStream, String string) throws IOException {
+        byte[] bytes = string.getBytes(CHARSET);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
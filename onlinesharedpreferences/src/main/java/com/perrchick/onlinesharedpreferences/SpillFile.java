@@ -0,0 +1,197 @@
+package com.perrchick.onlinesharedpreferences;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An append-only file of values that were evicted from memory, each value is read back by its offset.
+ * Values are [int length][UTF-8 bytes]. The file is temporary, it's created on the first append and it lives
+ * as long as its mirror.
+ *
+ * The file is accessed by positions only (never by a shared file pointer), so reads may run along with the appends.
+ * Reads that run outside of the owner's lock hold {@link #lockForReading()}, so the file isn't compacted or deleted under them.
+ * Everything else is called while holding the owner's lock.
+ */
+class SpillFile {
+    private static final String CHARSET = "UTF-8";
+    // Smaller files aren't worth compacting
+    private static final long MIN_COMPACTION_LENGTH = 1024 * 1024;
+
+    private final File directory;
+    // Shared by the reads, exclusive for replacing or deleting the file
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long length;
+    // Bytes of values that were read back, overridden or removed
+    private long garbageBytes;
+
+    SpillFile(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The offset of the value, to read it with
+     */
+    long append(String value) throws IOException {
+        if (randomAccessFile == null) {
+            file = File.createTempFile("syncedsharedpreferences", ".spill", directory);
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+        }
+
+        long offset = length;
+        length += write(channel, value.getBytes(CHARSET), offset);
+
+        return offset;
+    }
+
+    /**
+     * May run along with the other methods, while holding {@link #lockForReading()}
+     */
+    String read(long offset) throws IOException {
+        return read(channel, offset);
+    }
+
+    /**
+     * Keeps the offsets valid (no compaction, no deletion) until {@link #unlockForReading()}
+     */
+    void lockForReading() {
+        fileLock.readLock().lock();
+    }
+
+    void unlockForReading() {
+        fileLock.readLock().unlock();
+    }
+
+    /**
+     * Marks the value at this offset as no longer needed
+     */
+    void discard(long offset) throws IOException {
+        garbageBytes += 4 + readLength(channel, offset);
+    }
+
+    /**
+     * @return true if most of the file is values that are no longer needed
+     */
+    boolean isMostlyGarbage() {
+        return length > MIN_COMPACTION_LENGTH && garbageBytes > length / 2;
+    }
+
+    /**
+     * Moves the values that are still needed into a new file, and deletes the old one.
+     * Values are copied as bytes one at a time, so it doesn't take more memory than the largest value.
+     * @param offsets   Key -> the offset of its value, of all the values that are still needed
+     * @return Key -> the new offset of its value, or null if the file is being read at the moment (then it's for a later time)
+     */
+    Map<String, Long> compact(Map<String, Long> offsets) throws IOException {
+        if (!fileLock.writeLock().tryLock()) {
+            return null;
+        }
+
+        try {
+            File compactedFile = File.createTempFile("syncedsharedpreferences", ".spill", directory);
+            RandomAccessFile compactedRandomAccessFile = new RandomAccessFile(compactedFile, "rw");
+            FileChannel compactedChannel = compactedRandomAccessFile.getChannel();
+            HashMap<String, Long> compactedOffsets = new HashMap<>(offsets.size());
+            long compactedLength = 0;
+            try {
+                for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+                    byte[] bytes = new byte[readLength(channel, offset.getValue())];
+                    readFully(channel, ByteBuffer.wrap(bytes), offset.getValue() + 4);
+                    compactedOffsets.put(offset.getKey(), compactedLength);
+                    compactedLength += write(compactedChannel, bytes, compactedLength);
+                }
+            } catch (IOException e) {
+                compactedRandomAccessFile.close();
+                //noinspection ResultOfMethodCallIgnored
+                compactedFile.delete();
+                throw e;
+            }
+
+            deleteFile();
+            file = compactedFile;
+            randomAccessFile = compactedRandomAccessFile;
+            channel = compactedChannel;
+            length = compactedLength;
+            garbageBytes = 0;
+
+            return compactedOffsets;
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for the reads that are running
+     */
+    void delete() {
+        fileLock.writeLock().lock();
+        try {
+            deleteFile();
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    private void deleteFile() {
+        if (randomAccessFile == null) {
+            return;
+        }
+
+        try {
+            randomAccessFile.close();
+        } catch (IOException ignored) {
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        randomAccessFile = null;
+        channel = null;
+        length = 0;
+        garbageBytes = 0;
+    }
+
+    /**
+     * @return How many bytes were written
+     */
+    private static int write(FileChannel channel, byte[] bytes, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+        buffer.putInt(bytes.length).put(bytes).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+
+        return buffer.limit();
+    }
+
+    private static String read(FileChannel channel, long offset) throws IOException {
+        byte[] bytes = new byte[readLength(channel, offset)];
+        readFully(channel, ByteBuffer.wrap(bytes), offset + 4);
+
+        return new String(bytes, CHARSET);
+    }
+
+    private static int readLength(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(channel, buffer, offset);
+
+        return buffer.getInt(0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position() - start) < 0) {
+                throw new EOFException("No value at " + offset);
+            }
+        }
+    }
+}
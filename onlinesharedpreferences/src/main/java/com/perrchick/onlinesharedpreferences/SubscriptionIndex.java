@@ -0,0 +1,144 @@
+package com.perrchick.onlinesharedpreferences;
+
+import com.firebase.client.FirebaseError;
+import com.perrchick.onlinesharedpreferences.SyncedSharedPreferences.SyncedSharedPreferencesListener;
+import com.perrchick.onlinesharedpreferences.SyncedSharedPreferences.SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType;
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Routes every change only to the listeners that subscribed to its key, or to one of its prefixes.
+ * The subscriptions are kept in a trie of the keys' characters, so a change costs the length of its key
+ * and not the number of listeners.
+ */
+class SubscriptionIndex {
+    private static class Node {
+        private final HashMap<Character, Node> children = new HashMap<>();
+        // Listeners of the key that ends at this node
+        private final List<SyncedSharedPreferencesListener> keyListeners = new ArrayList<>();
+        // Listeners of every key that starts with this node's prefix
+        private final List<SyncedSharedPreferencesListener> prefixListeners = new ArrayList<>();
+
+        private boolean isEmpty() {
+            return children.isEmpty() && keyListeners.isEmpty() && prefixListeners.isEmpty();
+        }
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * @param keyOrPrefix   The exact key, or the prefix (an empty prefix matches every key)
+     * @throws IllegalArgumentException If it contains a '/', Firebase splits such keys into nested children,
+     *                                  so the changes never arrive with a key that could match
+     */
+    PreferencesBackend.Subscription add(final String keyOrPrefix, final boolean isPrefix, final SyncedSharedPreferencesListener listener) {
+        checkKeyOrPrefix(keyOrPrefix);
+        synchronized (root) {
+            Node node = root;
+            for (int i = 0; i < keyOrPrefix.length(); i++) {
+                Node child = node.children.get(keyOrPrefix.charAt(i));
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(keyOrPrefix.charAt(i), child);
+                }
+                node = child;
+            }
+            (isPrefix ? node.prefixListeners : node.keyListeners).add(listener);
+        }
+
+        return new PreferencesBackend.Subscription() {
+            private boolean isUnsubscribed;
+
+            @Override
+            public void unsubscribe() {
+                synchronized (root) {
+                    if (isUnsubscribed) {
+                        return;
+                    }
+                    isUnsubscribed = true;
+                    remove(root, keyOrPrefix, 0, isPrefix, listener);
+                }
+            }
+        };
+    }
+
+    /**
+     * @throws IllegalArgumentException If it can't be subscribed to, see {@link #add(String, boolean, SyncedSharedPreferencesListener)}
+     */
+    static void checkKeyOrPrefix(String keyOrPrefix) {
+        if (keyOrPrefix.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Keys can't contain '/', '" + keyOrPrefix + "' would never match");
+        }
+    }
+
+    // Removes the listener and prunes the branches that were left empty
+    private static void remove(Node node, String keyOrPrefix, int depth, boolean isPrefix, SyncedSharedPreferencesListener listener) {
+        if (depth == keyOrPrefix.length()) {
+            (isPrefix ? node.prefixListeners : node.keyListeners).remove(listener);
+            return;
+        }
+
+        Node child = node.children.get(keyOrPrefix.charAt(depth));
+        if (child == null) {
+            return;
+        }
+        remove(child, keyOrPrefix, depth + 1, isPrefix, listener);
+        if (child.isEmpty()) {
+            node.children.remove(keyOrPrefix.charAt(depth));
+        }
+    }
+
+    void notifyChanged(SyncedSharedPreferencesChangeType changeType, String key, String value) {
+        for (SyncedSharedPreferencesListener listener : listenersOf(key)) {
+            listener.onSyncedSharedPreferencesChanged(changeType, key, value);
+        }
+    }
+
+    void notifyError(FirebaseError error) {
+        ArrayList<SyncedSharedPreferencesListener> listeners = new ArrayList<>();
+        synchronized (root) {
+            collectAll(root, listeners);
+        }
+        for (SyncedSharedPreferencesListener listener : listeners) {
+            listener.onSyncedSharedPreferencesError(error);
+        }
+    }
+
+    // The listeners are called outside of the lock, so they may (un)subscribe
+    private List<SyncedSharedPreferencesListener> listenersOf(String key) {
+        ArrayList<SyncedSharedPreferencesListener> listeners = new ArrayList<>();
+        synchronized (root) {
+            Node node = root;
+            listeners.addAll(node.prefixListeners);
+            for (int i = 0; i < key.length(); i++) {
+                node = node.children.get(key.charAt(i));
+                if (node == null) {
+                    return listeners;
+                }
+                listeners.addAll(node.prefixListeners);
+            }
+            listeners.addAll(node.keyListeners);
+        }
+
+        return listeners;
+    }
+
+    private static void collectAll(Node node, List<SyncedSharedPreferencesListener> listeners) {
+        for (SyncedSharedPreferencesListener listener : node.prefixListeners) {
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+        for (SyncedSharedPreferencesListener listener : node.keyListeners) {
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+        for (Node child : node.children.values()) {
+            collectAll(child, listeners);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.perrchick.onlinesharedpreferences;
+
+import com.perrchick.onlinesharedpreferences.SyncedSharedPreferences.SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType;
+
+/**
+ * A single change of a key in the synced shared preferences.
+ */
+public class SyncedChange {
+    private final SyncedSharedPreferencesChangeType changeType;
+    private final String key;
+    private final String value;
+
+    SyncedChange(SyncedSharedPreferencesChangeType changeType, String key, String value) {
+        this.changeType = changeType;
+        this.key = key;
+        this.value = value;
+    }
+
+    public SyncedSharedPreferencesChangeType getChangeType() {
+        return changeType;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return The new value, or the last value if the key was removed
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Merges a later change of the same key into this one
+     * @return The merged change, or null if they cancel each other (i.e. added and then removed)
+     */
+    SyncedChange mergedWith(SyncedChange laterChange) {
+        SyncedSharedPreferencesChangeType mergedType;
+        switch (laterChange.changeType) {
+            case Removed:
+                if (changeType == SyncedSharedPreferencesChangeType.Added) {
+                    return null;
+                }
+                mergedType = SyncedSharedPreferencesChangeType.Removed;
+                break;
+            case Added:
+                mergedType = changeType == SyncedSharedPreferencesChangeType.Removed ? SyncedSharedPreferencesChangeType.Modified : changeType;
+                break;
+            default:
+                mergedType = changeType == SyncedSharedPreferencesChangeType.Added ? SyncedSharedPreferencesChangeType.Added : SyncedSharedPreferencesChangeType.Modified;
+        }
+
+        return new SyncedChange(mergedType, key, laterChange.value);
+    }
+
+    @Override
+    public String toString() {
+        return changeType + ": <" + key + "," + value + ">";
+    }
+}
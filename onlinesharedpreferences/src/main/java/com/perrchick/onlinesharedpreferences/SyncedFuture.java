@@ -0,0 +1,251 @@
+package com.perrchick.onlinesharedpreferences;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous read. Callbacks are always called on the dispatcher's thread (the main thread),
+ * whether they were added before or after the result has arrived. A cancelled future never calls its callbacks.
+ * Cancellation goes both ways along a chain of transformations: cancelling a future cancels the futures that were
+ * transformed from it, and cancelling a transformed future cancels the future it was transformed from, once nothing
+ * else depends on that future (no other transformed future and no callback).
+ */
+public class SyncedFuture<T> {
+    public interface Callback<T> {
+        void done(T value, Exception e);
+    }
+
+    public interface Transformation<T, R> {
+        R transform(T value);
+    }
+
+    private final Handler dispatcher;
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+    private ArrayList<Callback<T>> callbacks = new ArrayList<>(1);
+    // The futures that were transformed from this one, until it's done
+    private ArrayList<SyncedFuture<?>> transformedFutures = new ArrayList<>(1);
+    // The future this one was transformed from, if any
+    private SyncedFuture<?> source;
+    private boolean isDone;
+    private boolean isCancelled;
+    private boolean isPossiblyStale;
+    private T value;
+    private Exception exception;
+
+    SyncedFuture(Handler dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Adds a callback that will be called with the result
+     * @param callback    The callback that should be called after the value is fetched
+     * @return this future, for adding more callbacks
+     */
+    public SyncedFuture<T> then(Callback<T> callback) {
+        synchronized (this) {
+            if (isCancelled) {
+                return this;
+            }
+            if (!isDone) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+
+        dispatch(callback);
+        return this;
+    }
+
+    /**
+     * Chains a transformation of the result
+     * @param transformation   Transforms the result, runs on the dispatcher's thread
+     * @return A new future, for the transformed result. Cancelling it cancels this future too, if nothing else depends on it.
+     */
+    public <R> SyncedFuture<R> then(final Transformation<T, R> transformation) {
+        final SyncedFuture<R> transformedFuture = new SyncedFuture<>(dispatcher);
+        transformedFuture.source = this;
+        boolean isCancelled;
+        synchronized (this) {
+            isCancelled = this.isCancelled;
+            if (!isDone) {
+                transformedFutures.add(transformedFuture);
+            }
+        }
+        if (isCancelled) {
+            transformedFuture.cancel();
+            return transformedFuture;
+        }
+
+        then(new TransformingCallback<>(transformedFuture, transformation));
+
+        return transformedFuture;
+    }
+
+    /**
+     * Completes a transformed future, it's this future's dependent until either of them is done
+     */
+    private class TransformingCallback<R> implements Callback<T> {
+        private final SyncedFuture<R> transformedFuture;
+        private final Transformation<T, R> transformation;
+
+        TransformingCallback(SyncedFuture<R> transformedFuture, Transformation<T, R> transformation) {
+            this.transformedFuture = transformedFuture;
+            this.transformation = transformation;
+        }
+
+        @Override
+        public void done(T value, Exception e) {
+            if (e == null) {
+                transformedFuture.complete(transformation.transform(value), null, isPossiblyStale());
+            } else {
+                transformedFuture.complete(null, e);
+            }
+        }
+    }
+
+    /**
+     * Cancels the read, the callbacks won't be called.
+     * Also cancels the futures that were transformed from this one, and the future this one was transformed from
+     * unless something else still depends on it.
+     * @return false if the result had already arrived
+     */
+    public boolean cancel() {
+        ArrayList<SyncedFuture<?>> futuresToCancel;
+        SyncedFuture<?> sourceToCancel;
+        synchronized (this) {
+            if (isDone) {
+                return false;
+            }
+            isCancelled = true;
+            isDone = true;
+            callbacks = null;
+            futuresToCancel = transformedFutures;
+            transformedFutures = null;
+            sourceToCancel = source;
+            source = null;
+        }
+
+        doneLatch.countDown();
+        // Outside the lock, each of them takes its own (and they're already done if they've started this)
+        for (SyncedFuture<?> transformedFuture : futuresToCancel) {
+            transformedFuture.cancel();
+        }
+        if (sourceToCancel != null) {
+            sourceToCancel.onDependentCancelled(this);
+        }
+        return true;
+    }
+
+    /**
+     * Stops waiting for the result on behalf of the cancelled transformed future, and cancels the read if it was the last dependent
+     */
+    private void onDependentCancelled(SyncedFuture<?> transformedFuture) {
+        synchronized (this) {
+            if (isDone) {
+                return;
+            }
+            transformedFutures.remove(transformedFuture);
+            for (int i = 0; i < callbacks.size(); i++) {
+                Callback<T> callback = callbacks.get(i);
+                if (callback instanceof TransformingCallback && ((TransformingCallback<?>) callback).transformedFuture == transformedFuture) {
+                    callbacks.remove(i);
+                    break;
+                }
+            }
+            if (!callbacks.isEmpty() || !transformedFutures.isEmpty()) {
+                return;
+            }
+        }
+
+        cancel();
+    }
+
+    public synchronized boolean isDone() {
+        return isDone;
+    }
+
+    public synchronized boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * @return true if the value was read from a copy on the device, before it was synced with the cloud
+     */
+    public synchronized boolean isPossiblyStale() {
+        return isPossiblyStale;
+    }
+
+    /**
+     * Blocks until the result arrives, must not be called on the dispatcher's thread
+     * @param timeoutMillis    How long to wait
+     * @return The value
+     * @throws Exception The read's failure, or {@link TimeoutException} / {@link CancellationException}
+     */
+    public T get(long timeoutMillis) throws Exception {
+        if (!doneLatch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException();
+        }
+
+        synchronized (this) {
+            if (isCancelled) {
+                throw new CancellationException();
+            }
+            if (exception != null) {
+                throw exception;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Completes the future, only the first completion counts
+     * @return true if the future was completed by this call
+     */
+    boolean complete(T value, Exception e) {
+        return complete(value, e, false);
+    }
+
+    boolean complete(T value, Exception e, boolean isPossiblyStale) {
+        ArrayList<Callback<T>> callbacksToCall;
+        synchronized (this) {
+            if (isDone) {
+                return false;
+            }
+            this.value = value;
+            this.isPossiblyStale = isPossiblyStale;
+            this.exception = e;
+            isDone = true;
+            callbacksToCall = callbacks;
+            callbacks = null;
+            // Their results are on the way now, cancelling them is up to them alone
+            transformedFutures = null;
+            source = null;
+        }
+
+        doneLatch.countDown();
+        for (Callback<T> callback : callbacksToCall) {
+            dispatch(callback);
+        }
+        return true;
+    }
+
+    private void dispatch(final Callback<T> callback) {
+        dispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                T value;
+                Exception exception;
+                synchronized (SyncedFuture.this) {
+                    value = SyncedFuture.this.value;
+                    exception = SyncedFuture.this.exception;
+                }
+                callback.done(value, exception);
+            }
+        });
+    }
+}
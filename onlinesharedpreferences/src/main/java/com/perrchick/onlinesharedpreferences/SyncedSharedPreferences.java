@@ -1,18 +1,28 @@
 package com.perrchick.onlinesharedpreferences;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import com.firebase.client.ChildEventListener;
-import com.firebase.client.DataSnapshot;
-import com.firebase.client.Firebase;
 import com.firebase.client.FirebaseError;
-import com.firebase.client.ValueEventListener;
+import com.perrchick.onlinesharedpreferences.backend.InMemoryBackend;
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+import com.perrchick.onlinesharedpreferences.firebase.FirebaseBackend;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -31,18 +41,78 @@ public class SyncedSharedPreferences {
         void onSyncedSharedPreferencesError(FirebaseError error);
     }
 
+    /**
+     * Gets the changes in batches, one change set per frame (or per interval) instead of one call per change
+     */
+    public interface BatchedSyncedSharedPreferencesListener {
+        /**
+         * Called on the main thread
+         * @param changes   Key -> its change (several changes of the same key are merged into one), in the order they occurred
+         */
+        void onSyncedSharedPreferencesChanged(Map<String, SyncedChange> changes);
+        void onSyncedSharedPreferencesError(FirebaseError error);
+    }
+
+    /**
+     * A listener that can resume from where it stopped, see {@link #resumeFrom(long, String, ReplayableSyncedSharedPreferencesListener)}
+     */
+    public interface ReplayableSyncedSharedPreferencesListener extends SyncedSharedPreferencesListener {
+        /**
+         * Called instead of the missed changes, when they're not kept anymore
+         * @param keysAndValues    All the current <key,value> combinations (of the subscribed prefix)
+         * @param sequenceNumber   The sequence number that the snapshot is up to date with
+         */
+        void onSyncedSharedPreferencesSnapshot(Map<String, String> keysAndValues, long sequenceNumber);
+    }
+
     private static final String TAG = SyncedSharedPreferences.class.getSimpleName();
     private static final long TIME_OUT_MILLIS = 10000;
-    private static boolean shouldInitializeFireBase = true;
+    private static final long SNAPSHOT_WRITE_DELAY_MILLIS = 2000;
+    // Writes within this window are sent together, only the last value of each key
+    private static final long WRITE_COALESCING_WINDOW_MILLIS = 100;
+    private static final int CHANGE_FEED_CAPACITY = 256;
+    private static final long DEFAULT_MEMORY_BUDGET_BYTES = 4 * 1024 * 1024;
+    private static final long MIN_RECONNECTION_DELAY_MILLIS = 1000;
+    private static final long MAX_RECONNECTION_DELAY_MILLIS = 60000;
+    private static final int READ_THREADS_COUNT = 2;
+    // Shared by all the instances, for the timeouts, the write windows and the reconnections, nothing here waits for the device
+    private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+    // Shared by all the instances, loads and writes the snapshots, which may take a while with large mirrors
+    private static final ScheduledExecutorService snapshotExecutor = Executors.newSingleThreadScheduledExecutor();
+    // Shared by all the instances, for the reads that may read values from the device (that were spilled or saved)
+    private static final ExecutorService readExecutor = Executors.newFixedThreadPool(READ_THREADS_COUNT);
+    private static final Handler mainThreadDispatcher = new Handler(Looper.getMainLooper());
 
     private final SyncedSharedPreferencesListener syncedSharedPreferencesListener;
+    private volatile BatchedSyncedSharedPreferencesListener batchedListener;
+    private volatile ChangeBatcher changeBatcher;
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+    // The recent changes, for listeners that resume. Also the lock of the deliveries' queue.
+    private final ChangeFeed changeFeed = new ChangeFeed(CHANGE_FEED_CAPACITY);
+    // The deliveries of the changes and of the replays, in their order. They run outside of the lock, one at a time.
+    private final ArrayDeque<Runnable> pendingDeliveries = new ArrayDeque<>();
+    private boolean isDelivering;
+    // The sequence number of the last change that was delivered to the listeners
+    private long deliveredSequenceNumber = changeFeed.getLastSequenceNumber();
     // To prevent overriding by similar keys, there's another foreign key that will make this combination unique
     private final String packageName;
     public static final String FIREBASE_APP_URL = "https://boiling-inferno-8318.firebaseio.com/";
-    private final Firebase packageFirebaseRef;
+    private final PreferencesBackend backend;
+    private volatile PreferencesBackend.Subscription subscription;
+    // Increases on every (re)subscription, events of older subscriptions are ignored
+    private volatile int subscriptionGeneration;
+    private volatile boolean isResyncing;
+    private volatile int reconnectionAttempts;
+    private boolean isReconnectionScheduled;
+    private boolean isClosed;
+    private final Random random = new Random();
     private final Context context;
-    SharedPreferences localKeysAndValues;
-    private Object keysAndValuesLocker = new Object();
+    // The package's subtree, serves the reads without going to the cloud
+    private final LocalMirror localKeysAndValues;
+    // The mirror's copy on the device, null if it shouldn't be saved
+    private final SnapshotFile snapshotFile;
+    private boolean isSnapshotWriteScheduled;
+    private final WriteBuffer writeBuffer;
 
     /**
      * Gets a new instance of SyncedSharedPreferences, managed by Firebase
@@ -60,7 +130,7 @@ public class SyncedSharedPreferences {
      * @return SyncedSharedPreferences new instance
      */
     public static SyncedSharedPreferences getSyncedSharedPreferences(Context context, SyncedSharedPreferencesListener listener) {
-        return getSyncedSharedPreferences(context, null, listener);
+        return getSyncedSharedPreferences(context, (String) null, listener);
     }
 
     /**
@@ -76,59 +146,447 @@ public class SyncedSharedPreferences {
             // Use default
             firebaseAppUrl = FIREBASE_APP_URL;
         }
-        return new SyncedSharedPreferences(context, firebaseAppUrl, listener);
+        // Saved on the device, for the next cold start. One per package and project, like the subtree it mirrors.
+        String snapshotFileName = "syncedsharedpreferences_" + context.getPackageName() + "_" + Integer.toHexString(firebaseAppUrl.hashCode()) + ".snapshot";
+        SnapshotFile snapshotFile = new SnapshotFile(new File(context.getFilesDir(), snapshotFileName));
+        return new SyncedSharedPreferences(context, new FirebaseBackend(context, firebaseAppUrl), snapshotFile, listener);
+    }
+
+    /**
+     * Gets a new instance of SyncedSharedPreferences, managed by the given backend (i.e. {@link InMemoryBackend} for working offline)
+     * @param context The application's context
+     * @param backend The backend that keeps the values and publishes their changes
+     * @param listener The listener for added keys or changed values, may be null
+     * @return SyncedSharedPreferences new instance
+     */
+    public static SyncedSharedPreferences getSyncedSharedPreferences(Context context, PreferencesBackend backend, SyncedSharedPreferencesListener listener) {
+        return new SyncedSharedPreferences(context, backend, null, listener);
     }
 
-    private SyncedSharedPreferences(final Context context, String firebaseAppUrl, final SyncedSharedPreferencesListener listener) {
+    private SyncedSharedPreferences(final Context context, PreferencesBackend backend, SnapshotFile snapshotFile, final SyncedSharedPreferencesListener listener) {
         this.syncedSharedPreferencesListener = listener;
         this.context = context;
+        this.backend = backend;
+        this.snapshotFile = snapshotFile;
         packageName = context.getPackageName().replace(".", "-");
+        localKeysAndValues = new LocalMirror(context.getCacheDir());
+        localKeysAndValues.setMemoryBudget(DEFAULT_MEMORY_BUDGET_BYTES);
+        writeBuffer = new WriteBuffer(backend, packageName, executor, mainThreadDispatcher, WRITE_COALESCING_WINDOW_MILLIS);
+
+        if (snapshotFile != null) {
+            // Off the main thread, the reads wait for it (or for the backend's snapshot, whichever comes first)
+            snapshotExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadSavedSnapshot();
+                }
+            });
+        }
+
+        Log.v(TAG, "Initializing integration with " + backend.getClass().getSimpleName());
+
+        subscribe(false);
+    }
 
-        Log.v(TAG, "Initializing integration with Firebase");
+    // Runs on the snapshot executor
+    private void loadSavedSnapshot() {
+        SnapshotFile.Mapping savedSnapshot = snapshotFile.map();
+        if (savedSnapshot == null) {
+            return;
+        }
+        // Serves reads right away, until the backend catches up
+        if (localKeysAndValues.loadSavedSnapshot(savedSnapshot)) {
+            Log.v(TAG, "Loaded " + savedSnapshot.getValueOffsets().size() + " keys from the device");
+        }
+    }
 
-        if (shouldInitializeFireBase) {
-            Firebase.setAndroidContext(context);
-            shouldInitializeFireBase = false;
+    /**
+     * Subscribes to the backend's changes, and keeps the mirror current with them
+     * @param isResync   true if the mirror was already synced, then only the keys that have actually changed are delivered
+     */
+    private void subscribe(final boolean isResync) {
+        final int generation;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            generation = ++subscriptionGeneration;
+            isResyncing = isResync;
         }
 
-        packageFirebaseRef = new Firebase(firebaseAppUrl).child(packageName);
-        packageFirebaseRef.addChildEventListener(new ChildEventListener() {
+        localKeysAndValues.startSync();
+        subscription = backend.subscribe(packageName, new PreferencesBackend.ChangeListener() {
             @Override
-            public void onChildAdded(DataSnapshot dataSnapshot, String s) {
-                if (syncedSharedPreferencesListener != null) {
-                    syncedSharedPreferencesListener.onSyncedSharedPreferencesChanged(SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType.Added, dataSnapshot.getKey(), dataSnapshot.getValue().toString());
+            public void onChanged(PreferencesBackend.ChangeType changeType, String key, String value) {
+                if (generation != subscriptionGeneration) {
+                    // A late event of a failed subscription
+                    return;
                 }
+                boolean isChanged = localKeysAndValues.apply(changeType, key, value);
+                if (isChanged) {
+                    scheduleSnapshotWrite();
+                } else if (isResyncing) {
+                    // The backend replays the whole package after a reconnection, the mirror already has this one
+                    return;
+                }
+                notifyChanged(SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType.valueOf(changeType.name()), key, value);
             }
 
             @Override
-            public void onChildChanged(DataSnapshot dataSnapshot, String s) {
-                if (syncedSharedPreferencesListener != null) {
-                    syncedSharedPreferencesListener.onSyncedSharedPreferencesChanged(SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType.Modified, dataSnapshot.getKey(), dataSnapshot.getValue().toString());
+            public void onSnapshot(Map<String, String> keysAndValues) {
+                if (generation != subscriptionGeneration) {
+                    return;
+                }
+                Map<String, String> removedKeysAndValues = localKeysAndValues.applySnapshot(keysAndValues);
+                Log.v(TAG, "Synced " + keysAndValues.size() + " keys" + (isResyncing ? " after reconnecting" : ""));
+                isResyncing = false;
+                reconnectionAttempts = 0;
+                if (!isResync || !removedKeysAndValues.isEmpty()) {
+                    scheduleSnapshotWrite();
+                }
+
+                // Reconciles the copy from the device, the other differences were already delivered as changes
+                for (Map.Entry<String, String> removed : removedKeysAndValues.entrySet()) {
+                    notifyChanged(SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType.Removed, removed.getKey(), removed.getValue());
                 }
             }
 
             @Override
-            public void onChildRemoved(DataSnapshot dataSnapshot) {
+            public void onError(Exception e) {
+                if (generation != subscriptionGeneration) {
+                    return;
+                }
+                Log.e(TAG, e.toString());
+                FirebaseError firebaseError = toFirebaseError(e);
                 if (syncedSharedPreferencesListener != null) {
-                    syncedSharedPreferencesListener.onSyncedSharedPreferencesChanged(SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType.Removed, dataSnapshot.getKey(), dataSnapshot.getValue().toString());
+                    syncedSharedPreferencesListener.onSyncedSharedPreferencesError(firebaseError);
+                }
+                subscriptions.notifyError(firebaseError);
+                BatchedSyncedSharedPreferencesListener batchedListener = SyncedSharedPreferences.this.batchedListener;
+                if (batchedListener != null) {
+                    batchedListener.onSyncedSharedPreferencesError(firebaseError);
                 }
+
+                scheduleReconnection(generation);
+            }
+        });
+
+        synchronized (this) {
+            if (isClosed) {
+                // Closed while subscribing
+                subscription.unsubscribe();
+            }
+        }
+    }
+
+    /**
+     * Subscribes again after a jittered exponential backoff, so many devices that lost the same connection won't return all at once
+     */
+    private void scheduleReconnection(int failedGeneration) {
+        long delayMillis;
+        synchronized (this) {
+            if (isClosed || failedGeneration != subscriptionGeneration || isReconnectionScheduled) {
+                return;
             }
+            isReconnectionScheduled = true;
+            long maxDelayMillis = Math.min(MAX_RECONNECTION_DELAY_MILLIS, MIN_RECONNECTION_DELAY_MILLIS << Math.min(reconnectionAttempts, 16));
+            reconnectionAttempts++;
+            // Anywhere between half and the whole of the current backoff
+            delayMillis = maxDelayMillis / 2 + (long) (random.nextDouble() * (maxDelayMillis / 2));
+        }
 
+        subscription.unsubscribe();
+        Log.v(TAG, "Reconnecting in " + delayMillis + " ms (attempt " + reconnectionAttempts + ")...");
+        executor.schedule(new Runnable() {
             @Override
-            public void onChildMoved(DataSnapshot dataSnapshot, String s) {
-                if (syncedSharedPreferencesListener != null) {
-                    syncedSharedPreferencesListener.onSyncedSharedPreferencesChanged(SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType.Modified, dataSnapshot.getKey(), dataSnapshot.getValue().toString());
+            public void run() {
+                synchronized (SyncedSharedPreferences.this) {
+                    isReconnectionScheduled = false;
+                }
+                subscribe(true);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyChanged(final SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType changeType, final String key, final String value) {
+        synchronized (changeFeed) {
+            final long sequenceNumber = changeFeed.append(changeType, key, value);
+            pendingDeliveries.add(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (changeFeed) {
+                        deliveredSequenceNumber = sequenceNumber;
+                    }
+                    if (syncedSharedPreferencesListener != null) {
+                        syncedSharedPreferencesListener.onSyncedSharedPreferencesChanged(changeType, key, value);
+                    }
+                    subscriptions.notifyChanged(changeType, key, value);
                 }
+            });
+        }
+        deliverPending();
+
+        ChangeBatcher changeBatcher = this.changeBatcher;
+        if (changeBatcher != null) {
+            changeBatcher.add(new SyncedChange(changeType, key, value));
+        }
+    }
+
+    /**
+     * Runs the pending deliveries in their order, one thread at a time and without holding the lock,
+     * so a listener may call back into this instance (or wait for a thread that does)
+     */
+    private void deliverPending() {
+        synchronized (changeFeed) {
+            if (isDelivering) {
+                // The delivering thread will get to them, if it's this thread then right after the current listener returns
+                return;
+            }
+            isDelivering = true;
+        }
+
+        try {
+            while (true) {
+                Runnable delivery;
+                synchronized (changeFeed) {
+                    delivery = pendingDeliveries.poll();
+                    if (delivery == null) {
+                        isDelivering = false;
+                        return;
+                    }
+                }
+                delivery.run();
+            }
+        } catch (RuntimeException | Error e) {
+            // A failing listener shouldn't stop the deliveries for good, the next change delivers the rest
+            synchronized (changeFeed) {
+                isDelivering = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return The sequence number of the last change that was delivered, a listener may call it while it's being notified to get the number of that change.
+     * Save it (i.e. in onSaveInstanceState) to resume from it later, with {@link #resumeFrom(long, String, ReplayableSyncedSharedPreferencesListener)}
+     */
+    public long getLastSequenceNumber() {
+        synchronized (changeFeed) {
+            return deliveredSequenceNumber;
+        }
+    }
+
+    /**
+     * Subscribes a listener to the changes of every key that starts with the given prefix, after catching it up with the changes it missed.
+     * If some of them aren't kept anymore (or the sequence number is of another instance, i.e. before the process was restarted),
+     * the listener gets a snapshot of the current values instead.
+     * The missed changes are delivered before any newer change, on the calling thread before this method returns.
+     * Only if changes are being delivered at the moment, they're delivered right after them (by the delivering thread).
+     * @param sequenceNumber   The last change that the listener has seen, from {@link #getLastSequenceNumber()}
+     * @param keyPrefix        The prefix of the keys, an empty prefix matches every key
+     * @param listener         The listener
+     * @return The subscription, to stop listening
+     */
+    public PreferencesBackend.Subscription resumeFrom(long sequenceNumber, final String keyPrefix, final ReplayableSyncedSharedPreferencesListener listener) {
+        SubscriptionIndex.checkKeyOrPrefix(keyPrefix);
+        final DeferredSubscription subscription = new DeferredSubscription();
+        synchronized (changeFeed) {
+            final List<SyncedChange> missedChanges = changeFeed.changesAfter(sequenceNumber, keyPrefix);
+            final HashMap<String, String> keysAndValues;
+            final long snapshotSequenceNumber = changeFeed.getLastSequenceNumber();
+            if (missedChanges != null) {
+                keysAndValues = null;
+            } else {
+                Log.v(TAG, "The changes after " + sequenceNumber + " were dropped, resuming with a snapshot");
+                keysAndValues = new HashMap<>();
+                // Reads only the values of the prefix
+                localKeysAndValues.forEach(keyPrefix, new LocalMirror.Visitor() {
+                    @Override
+                    public void visit(String key, String value) {
+                        keysAndValues.put(key, value);
+                    }
+                });
+            }
+
+            // After the deliveries of the changes it has already seen (or that are in the snapshot), and before the newer ones
+            pendingDeliveries.add(new Runnable() {
+                @Override
+                public void run() {
+                    if (subscription.isUnsubscribed()) {
+                        return;
+                    }
+                    if (missedChanges != null) {
+                        for (SyncedChange missedChange : missedChanges) {
+                            listener.onSyncedSharedPreferencesChanged(missedChange.getChangeType(), missedChange.getKey(), missedChange.getValue());
+                        }
+                    } else {
+                        listener.onSyncedSharedPreferencesSnapshot(keysAndValues, snapshotSequenceNumber);
+                    }
+                    subscription.set(subscriptions.add(keyPrefix, true, listener));
+                }
+            });
+        }
+        deliverPending();
+
+        return subscription;
+    }
+
+    /**
+     * A subscription that's made later, in order with the deliveries. Unsubscribing before then cancels it.
+     */
+    private static class DeferredSubscription implements PreferencesBackend.Subscription {
+        private PreferencesBackend.Subscription subscription;
+        private boolean isUnsubscribed;
+
+        synchronized boolean isUnsubscribed() {
+            return isUnsubscribed;
+        }
+
+        void set(PreferencesBackend.Subscription subscription) {
+            synchronized (this) {
+                if (!isUnsubscribed) {
+                    this.subscription = subscription;
+                    return;
+                }
+            }
+            // Unsubscribed while it was being made
+            subscription.unsubscribe();
+        }
+
+        @Override
+        public void unsubscribe() {
+            PreferencesBackend.Subscription subscription;
+            synchronized (this) {
+                isUnsubscribed = true;
+                subscription = this.subscription;
+                this.subscription = null;
+            }
+            if (subscription != null) {
+                subscription.unsubscribe();
+            }
+        }
+    }
+
+    /**
+     * Subscribes a listener to the changes of a single key
+     * @param key        The key that identifies the value
+     * @param listener   The listener, it will be called only for this key
+     * @return The subscription, to stop listening
+     */
+    public PreferencesBackend.Subscription subscribe(String key, SyncedSharedPreferencesListener listener) {
+        return subscriptions.add(key, false, listener);
+    }
+
+    /**
+     * Subscribes a listener to the changes of every key that starts with the given prefix, i.e. "settings_".
+     * Keys can't contain '/' (Firebase treats it as a path), so neither can the prefix.
+     * @param keyPrefix  The prefix of the keys, an empty prefix matches every key
+     * @param listener   The listener, it will be called only for the matching keys
+     * @return The subscription, to stop listening
+     */
+    public PreferencesBackend.Subscription subscribeToPrefix(String keyPrefix, SyncedSharedPreferencesListener listener) {
+        return subscriptions.add(keyPrefix, true, listener);
+    }
+
+    /**
+     * Sets a listener that gets the changes in batches, once per frame
+     * @param batchedListener   The listener, null to remove the current one
+     */
+    public void setBatchedListener(BatchedSyncedSharedPreferencesListener batchedListener) {
+        setBatchedListener(batchedListener, 0);
+    }
+
+    /**
+     * Sets a listener that gets the changes in batches, i.e. a bulk import of many keys will end up in a single call
+     * @param batchedListener   The listener, null to remove the current one
+     * @param intervalMillis    How long to collect changes before delivering them, 0 to deliver once per frame
+     */
+    public void setBatchedListener(BatchedSyncedSharedPreferencesListener batchedListener, long intervalMillis) {
+        this.batchedListener = batchedListener;
+        this.changeBatcher = batchedListener == null ? null : new ChangeBatcher(batchedListener, mainThreadDispatcher, intervalMillis);
+    }
+
+    private static FirebaseError toFirebaseError(Exception e) {
+        if (e instanceof FirebaseBackend.FirebaseErrorException) {
+            return ((FirebaseBackend.FirebaseErrorException) e).getFirebaseError();
+        }
+
+        return new FirebaseError(FirebaseError.UNKNOWN_ERROR, e.getMessage());
+    }
+
+    /**
+     * Saves the mirror on the device a short while after the last change, so bursts of changes are saved once
+     */
+    private void scheduleSnapshotWrite() {
+        if (snapshotFile == null || localKeysAndValues.isPossiblyStale()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (isSnapshotWriteScheduled) {
+                return;
             }
+            isSnapshotWriteScheduled = true;
+        }
 
+        snapshotExecutor.schedule(new Runnable() {
             @Override
-            public void onCancelled(FirebaseError firebaseError) {
-                Log.e(TAG, firebaseError.toString());
-                syncedSharedPreferencesListener.onSyncedSharedPreferencesError(firebaseError);
+            public void run() {
+                writeSnapshotIfScheduled();
             }
-        });
+        }, SNAPSHOT_WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the snapshot executor
+    private void writeSnapshotIfScheduled() {
+        synchronized (this) {
+            if (!isSnapshotWriteScheduled) {
+                // Already written
+                return;
+            }
+            isSnapshotWriteScheduled = false;
+        }
+        try {
+            snapshotFile.write(localKeysAndValues);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save the snapshot: " + e);
+        }
+    }
+
+    /**
+     * @return true if the reads are served from the copy on the device, because the cloud isn't synced yet
+     */
+    public boolean isPossiblyStale() {
+        return localKeysAndValues.isPossiblyStale();
+    }
+
+    /**
+     * Sets how much memory the values may take (4MB by default). Over the budget, the least recently used values
+     * are kept on the device and read back when they're needed, so only their keys stay in memory.
+     * @param memoryBudgetBytes   The budget, in bytes
+     */
+    public void setMemoryBudget(long memoryBudgetBytes) {
+        localKeysAndValues.setMemoryBudget(memoryBudgetBytes);
+    }
 
-        localKeysAndValues = null;
+    /**
+     * Stops listening to the changes, the instance shouldn't be used afterwards
+     */
+    public void close() {
+        writeBuffer.flush();
+        synchronized (this) {
+            isClosed = true;
+        }
+        subscription.unsubscribe();
+
+        // The spilled values are needed until the last snapshot is written
+        snapshotExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshotIfScheduled();
+                localKeysAndValues.close();
+            }
+        });
     }
 
     public interface GetAllObjectsCallback {
@@ -137,6 +595,9 @@ public class SyncedSharedPreferences {
     public interface GetStringCallback {
         void done(String value, Exception e);
     }
+    public interface WriteCallback {
+        void done(Exception e);
+    }
 
     /**
      * Puts a string in the shared preferences and synchronizes with firebase cloud.
@@ -144,7 +605,18 @@ public class SyncedSharedPreferences {
      * @param value    The String value that should persist online
      */
     public SyncedSharedPreferences putString(String key, String value) {
-        packageFirebaseRef.child(key).setValue(value);
+        return putString(key, value, null);
+    }
+
+    /**
+     * Puts a string in the shared preferences and synchronizes with firebase cloud.
+     * Writes of a short window are sent together, so a key that's written repeatedly is sent only with its last value.
+     * @param key      The key that identifies the value
+     * @param value    The String value that should persist online
+     * @param callback Called on the main thread once the write is committed, may be null
+     */
+    public SyncedSharedPreferences putString(String key, String value, WriteCallback callback) {
+        writeBuffer.write(key, value, callback);
         return this;
     }
 
@@ -153,73 +625,167 @@ public class SyncedSharedPreferences {
      * @param key               The key that identifies the value
      */
     public void remove(final String key) {
+        remove(key, null);
+    }
+
+    /**
+     * Asynchronously removes the value and the key from the online shared preferences
+     * @param key               The key that identifies the value
+     * @param callback          Called on the main thread once the removal is committed, may be null
+     */
+    public void remove(final String key, WriteCallback callback) {
         Log.v(TAG, "Removing '" + key + "'...");
-        packageFirebaseRef.child(key).removeValue();
+        writeBuffer.write(key, null, callback);
     }
 
     /**
-     * Gets a string from the cloud
+     * Sends the buffered writes right away, instead of waiting for the end of their window
+     */
+    public void flush() {
+        writeBuffer.flush();
+    }
+
+    /**
+     * Gets a string from the local mirror of the cloud, waits for the initial sync if it's not done yet.
+     * Right after a cold start the value may come from the copy on the device, see {@link SyncedFuture#isPossiblyStale()}.
+     * Writes that weren't confirmed by the cloud yet are read back too. A value that isn't in memory is read from the device
+     * on a background thread.
+     * @param key         The key that identifies the value
+     * @return The pending value, an empty string if the key is missing
+     */
+    public SyncedFuture<String> getString(final String key) {
+        if (localKeysAndValues.isReady()) {
+            // Served right away if the value is in memory, otherwise it's read off the calling thread
+            Map<String, String> pendingEntries = writeBuffer.getPendingEntries(Collections.singleton(key));
+            String value = pendingEntries.containsKey(key) ? pendingEntries.get(key) : localKeysAndValues.getInMemory(key);
+            if (value != null || pendingEntries.containsKey(key)) {
+                SyncedFuture<String> future = new SyncedFuture<>(mainThreadDispatcher);
+                future.complete(value == null ? "" : value, null, localKeysAndValues.isPossiblyStale());
+                return future;
+            }
+        }
+
+        return read(new Read<String>() {
+            @Override
+            public String read() {
+                Map<String, String> pendingEntries = writeBuffer.getPendingEntries(Collections.singleton(key));
+                String value = pendingEntries.containsKey(key) ? pendingEntries.get(key) : localKeysAndValues.get(key);
+                return value == null ? "" : value;
+            }
+        });
+    }
+
+    /**
+     * Gets a string from the local mirror of the cloud, waits for the initial sync if it's not done yet
      * @param key         The key that identifies the value
-     * @param callback    The callback that should be called after the value is fetched
+     * @param callback    The callback that should be called (on the main thread) after the value is fetched
+     * @return The pending value, may be cancelled
      */
-    public void getString(final String key, final GetStringCallback callback) {
+    public SyncedFuture<String> getString(final String key, final GetStringCallback callback) {
+        SyncedFuture<String> future = getString(key);
         // Guard
         if (callback == null){
-            return;
+            return future;
         }
 
-        new Thread(new Runnable() {
+        return future.then(new SyncedFuture.Callback<String>() {
             @Override
-            public void run() {
-                synchronized (keysAndValuesLocker) {
-                    if (localKeysAndValues == null) {
-                        try {
-                            keysAndValuesLocker.wait(TIME_OUT_MILLIS);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
+            public void done(String value, Exception e) {
+                callback.done(value, e);
+            }
+        });
+    }
 
-                    Handler mainHandler = new Handler(context.getMainLooper());
-                    Runnable myRunnable = new Runnable() {
-                        @Override
-                        public void run() {
-                            callback.done(localKeysAndValues == null ? null : localKeysAndValues.getString(key, ""), localKeysAndValues == null ? new TimeoutException("Firebase connection took too long") : null);
-                        }
-                    };
-                    mainHandler.post(myRunnable);
+    /**
+     * Gets all objects in the online shared preferences, from the local mirror of the cloud
+     * and the writes that weren't confirmed by the cloud yet. They're read on a background thread, the values that aren't
+     * in memory are read from the device.
+     * @return The pending objects
+     */
+    public SyncedFuture<Map<String, ?>> getAllObjects() {
+        return read(new Read<Map<String, ?>>() {
+            @Override
+            public Map<String, ?> read() {
+                final HashMap<String, String> keysAndValues = new HashMap<>();
+                localKeysAndValues.forEach("", new LocalMirror.Visitor() {
+                    @Override
+                    public void visit(String key, String value) {
+                        keysAndValues.put(key, value);
+                    }
+                });
+                for (Map.Entry<String, String> pendingEntry : writeBuffer.getPendingEntries().entrySet()) {
+                    if (pendingEntry.getValue() == null) {
+                        keysAndValues.remove(pendingEntry.getKey());
+                    } else {
+                        keysAndValues.put(pendingEntry.getKey(), pendingEntry.getValue());
+                    }
                 }
+
+                return keysAndValues;
+            }
+        });
+    }
+
+    /**
+     * Gets all objects in the online shared preferences, from the local mirror of the cloud
+     * @param callback    The callback that should be called (on the main thread) after the objects are fetched
+     * @return The pending objects, may be cancelled
+     */
+    public SyncedFuture<Map<String, ?>> getAllObjects(final GetAllObjectsCallback callback) {
+        SyncedFuture<Map<String, ?>> future = getAllObjects();
+        // Guard
+        if (callback == null){
+            return future;
+        }
+
+        return future.then(new SyncedFuture.Callback<Map<String, ?>>() {
+            @Override
+            public void done(Map<String, ?> objects, Exception e) {
+                callback.done(objects, e);
             }
-        }).start();
+        });
+    }
+
+    private interface Read<T> {
+        T read();
     }
 
     /**
-     * Gets all objects in the online shared preferences
-     * @param callback
+     * Reads from the mirror right away if it's ready, otherwise once it's ready (or fails after the time out).
+     * No thread waits for the mirror. The read itself runs on the read executor, never on the calling thread (usually
+     * the main thread) or on the initial sync's thread, because it may read values from the device.
      */
-    public void getAllObjects(final GetAllObjectsCallback callback) {
-        new Thread(new Runnable() {
+    private <T> SyncedFuture<T> read(final Read<T> read) {
+        final SyncedFuture<T> future = new SyncedFuture<>(mainThreadDispatcher);
+        final Runnable completion = new Runnable() {
             @Override
             public void run() {
-                synchronized (keysAndValuesLocker) {
-                    if (localKeysAndValues == null) {
-                        try {
-                            keysAndValuesLocker.wait(TIME_OUT_MILLIS);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
+                if (!future.isDone()) {
+                    future.complete(read.read(), null, localKeysAndValues.isPossiblyStale());
+                }
+            }
+        };
+        if (localKeysAndValues.isReady()) {
+            readExecutor.execute(completion);
+            return future;
+        }
 
-                    Handler mainHandler = new Handler(context.getMainLooper());
-                    Runnable myRunnable = new Runnable() {
-                        @Override
-                        public void run() {
-                            callback.done(localKeysAndValues == null ? null : localKeysAndValues.getAll(), localKeysAndValues == null ? new TimeoutException("Firebase connection took too long") : null);
-                        }
-                    };
-                    mainHandler.post(myRunnable);
+        final ScheduledFuture<?> timeout = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(null, new TimeoutException("Firebase connection took too long"));
+            }
+        }, TIME_OUT_MILLIS, TimeUnit.MILLISECONDS);
+        localKeysAndValues.whenReady(new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel(false);
+                if (!future.isDone()) {
+                    readExecutor.execute(completion);
                 }
             }
-        }).start();
+        });
+
+        return future;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,176 @@
+package com.perrchick.onlinesharedpreferences;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers the writes of a short window and keeps only the last value of every key, then sends them all
+ * as a single atomic update. Every write is reported with the outcome of the update that contained its key.
+ * Writes that the backend hasn't confirmed yet (buffered or on their way) can be read back with {@link #getPendingEntries(Collection)}.
+ */
+class WriteBuffer {
+    private static final String TAG = WriteBuffer.class.getSimpleName();
+
+    private final PreferencesBackend backend;
+    private final String packageName;
+    private final ScheduledExecutorService executor;
+    private final Handler callbacksDispatcher;
+    private final long windowMillis;
+    // Key -> its last value, null for removal
+    private HashMap<String, String> pendingEntries = new HashMap<>();
+    private ArrayList<SyncedSharedPreferences.WriteCallback> pendingCallbacks = new ArrayList<>();
+    // Copies of the updates that were sent and weren't confirmed yet, the oldest first. Guarded by this.
+    private final ArrayList<HashMap<String, String>> sentEntries = new ArrayList<>();
+    private boolean isFlushScheduled;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    WriteBuffer(PreferencesBackend backend, String packageName, ScheduledExecutorService executor, Handler callbacksDispatcher, long windowMillis) {
+        this.backend = backend;
+        this.packageName = packageName;
+        this.executor = executor;
+        this.callbacksDispatcher = callbacksDispatcher;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @param value      The new value, null to remove the key
+     * @param callback   Called on the main thread once the write is committed, may be null
+     */
+    void write(String key, String value, SyncedSharedPreferences.WriteCallback callback) {
+        synchronized (this) {
+            pendingEntries.put(key, value);
+            if (callback != null) {
+                pendingCallbacks.add(callback);
+            }
+
+            if (isFlushScheduled) {
+                return;
+            }
+            isFlushScheduled = true;
+        }
+
+        // The window starts with its first write, so a steady stream of writes still goes out every window
+        executor.schedule(flush, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The values of these keys that weren't confirmed by the backend yet, the latest write of every key.
+     *         A null value means the key was removed
+     */
+    Map<String, String> getPendingEntries(Collection<String> keys) {
+        HashMap<String, String> entries = new HashMap<>();
+        synchronized (this) {
+            if (pendingEntries.isEmpty() && sentEntries.isEmpty()) {
+                return entries;
+            }
+            for (String key : keys) {
+                if (pendingEntries.containsKey(key)) {
+                    entries.put(key, pendingEntries.get(key));
+                    continue;
+                }
+                for (int i = sentEntries.size() - 1; i >= 0; i--) {
+                    if (sentEntries.get(i).containsKey(key)) {
+                        entries.put(key, sentEntries.get(i).get(key));
+                        break;
+                    }
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return All the writes that weren't confirmed by the backend yet, a null value means the key was removed
+     */
+    Map<String, String> getPendingEntries() {
+        HashMap<String, String> entries = new HashMap<>();
+        synchronized (this) {
+            for (HashMap<String, String> sent : sentEntries) {
+                entries.putAll(sent);
+            }
+            entries.putAll(pendingEntries);
+        }
+
+        return entries;
+    }
+
+    // Called while holding the lock
+    private void onSentEntriesDone(HashMap<String, String> sent, boolean isConfirmed) {
+        int index = 0;
+        while (sentEntries.get(index) != sent) {
+            index++;
+        }
+        sentEntries.remove(index);
+        if (!isConfirmed) {
+            return;
+        }
+        // The older values of these keys were overridden in the backend too, whatever their outcome is
+        for (int i = 0; i < index; i++) {
+            sentEntries.get(i).keySet().removeAll(sent.keySet());
+        }
+    }
+
+    /**
+     * Sends the pending writes right away
+     */
+    void flush() {
+        final HashMap<String, String> entries;
+        final HashMap<String, String> sent;
+        final ArrayList<SyncedSharedPreferences.WriteCallback> callbacks;
+        synchronized (this) {
+            isFlushScheduled = false;
+            if (pendingEntries.isEmpty()) {
+                return;
+            }
+            entries = pendingEntries;
+            callbacks = pendingCallbacks;
+            pendingEntries = new HashMap<>();
+            pendingCallbacks = new ArrayList<>();
+            // A copy, the backend owns the entries now
+            sent = new HashMap<>(entries);
+            sentEntries.add(sent);
+        }
+
+        Log.v(TAG, "Writing " + entries.size() + " keys...");
+        backend.upsert(packageName, entries, new PreferencesBackend.Callback<Void>() {
+            @Override
+            public void done(Void nothing, final Exception e) {
+                synchronized (WriteBuffer.this) {
+                    // Either in the backend (and its change is on the way to the mirror), or failed
+                    onSentEntriesDone(sent, e == null);
+                }
+                if (e != null) {
+                    Log.e(TAG, "Failed to write " + entries.keySet() + ": " + e);
+                }
+                if (callbacks.isEmpty()) {
+                    return;
+                }
+
+                callbacksDispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (SyncedSharedPreferences.WriteCallback callback : callbacks) {
+                            callback.done(e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
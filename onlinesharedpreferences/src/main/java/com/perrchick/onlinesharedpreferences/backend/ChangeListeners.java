@@ -0,0 +1,49 @@
+package com.perrchick.onlinesharedpreferences.backend;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps the change listeners of every package, for backends that publish their own changes.
+ */
+public class ChangeListeners {
+    // Package name -> the listeners of that package
+    private final HashMap<String, List<PreferencesBackend.ChangeListener>> listeners = new HashMap<>();
+
+    public PreferencesBackend.Subscription add(final String packageName, final PreferencesBackend.ChangeListener listener) {
+        synchronized (listeners) {
+            List<PreferencesBackend.ChangeListener> packageListeners = listeners.get(packageName);
+            if (packageListeners == null) {
+                packageListeners = new ArrayList<>();
+                listeners.put(packageName, packageListeners);
+            }
+            packageListeners.add(listener);
+        }
+
+        return new PreferencesBackend.Subscription() {
+            @Override
+            public void unsubscribe() {
+                synchronized (listeners) {
+                    List<PreferencesBackend.ChangeListener> packageListeners = listeners.get(packageName);
+                    if (packageListeners != null) {
+                        packageListeners.remove(listener);
+                    }
+                }
+            }
+        };
+    }
+
+    public void notifyChanged(String packageName, PreferencesBackend.ChangeType changeType, String key, String value) {
+        for (PreferencesBackend.ChangeListener listener : listenersOf(packageName)) {
+            listener.onChanged(changeType, key, value);
+        }
+    }
+
+    private List<PreferencesBackend.ChangeListener> listenersOf(String packageName) {
+        synchronized (listeners) {
+            List<PreferencesBackend.ChangeListener> packageListeners = listeners.get(packageName);
+            return packageListeners == null ? new ArrayList<PreferencesBackend.ChangeListener>() : new ArrayList<>(packageListeners);
+        }
+    }
+}
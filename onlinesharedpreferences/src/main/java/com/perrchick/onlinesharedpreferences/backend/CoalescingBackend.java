@@ -0,0 +1,192 @@
+package com.perrchick.onlinesharedpreferences.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps a backend and deduplicates concurrent reads: all the callers that ask for the same key (or the same page)
+ * while it's already on its way share that single request, and each one of them gets the result.
+ * Writes go straight to the wrapped backend, and detach the reads that are on their way, so a read that starts
+ * after a write will never get a result that was fetched before it.
+ */
+public class CoalescingBackend implements PreferencesBackend {
+    private final PreferencesBackend backend;
+    // (package name, key) -> the callers that wait for that key
+    private final HashMap<String, List<Callback<String>>> pendingGets = new HashMap<>();
+    // (package name, offset, page size) -> the callers that wait for that page
+    private final HashMap<String, List<Callback<Page>>> pendingPages = new HashMap<>();
+
+    public CoalescingBackend(PreferencesBackend backend) {
+        this.backend = backend;
+    }
+
+    @Override
+    public void get(final String packageName, Collection<String> keys, final Callback<Map<String, String>> callback) {
+        final LinkedHashSet<String> uniqueKeys = new LinkedHashSet<>(keys);
+        if (uniqueKeys.isEmpty()) {
+            callback.done(new HashMap<String, String>(), null);
+            return;
+        }
+
+        final KeysCollector keysCollector = new KeysCollector(uniqueKeys.size(), callback);
+        final ArrayList<String> keysToRequest = new ArrayList<>();
+        // Only the callers of the keys that are being requested now
+        final HashMap<String, List<Callback<String>>> requestedCallbacks = new HashMap<>();
+        synchronized (pendingGets) {
+            for (final String key : uniqueKeys) {
+                String identity = identityOf(packageName, key);
+                List<Callback<String>> waitingCallbacks = pendingGets.get(identity);
+                if (waitingCallbacks == null) {
+                    waitingCallbacks = new ArrayList<>();
+                    pendingGets.put(identity, waitingCallbacks);
+                    keysToRequest.add(key);
+                    requestedCallbacks.put(key, waitingCallbacks);
+                }
+                waitingCallbacks.add(new Callback<String>() {
+                    @Override
+                    public void done(String value, Exception e) {
+                        keysCollector.done(key, value, e);
+                    }
+                });
+            }
+        }
+
+        if (keysToRequest.isEmpty()) {
+            // Everything is already on its way
+            return;
+        }
+
+        backend.get(packageName, keysToRequest, new Callback<Map<String, String>>() {
+            @Override
+            public void done(Map<String, String> values, Exception e) {
+                for (String key : keysToRequest) {
+                    List<Callback<String>> waitingCallbacks = requestedCallbacks.get(key);
+                    synchronized (pendingGets) {
+                        String identity = identityOf(packageName, key);
+                        // Might have been detached by a write
+                        if (pendingGets.get(identity) == waitingCallbacks) {
+                            pendingGets.remove(identity);
+                        }
+                        waitingCallbacks = new ArrayList<>(waitingCallbacks);
+                    }
+                    for (Callback<String> waitingCallback : waitingCallbacks) {
+                        waitingCallback.done(e == null ? values.get(key) : null, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Collects the results of all the keys of a single get, whether they were requested by it or earlier
+     */
+    private static class KeysCollector {
+        private final Callback<Map<String, String>> callback;
+        private final HashMap<String, String> values;
+        private int remaining;
+        private Exception firstException;
+
+        KeysCollector(int keysCount, Callback<Map<String, String>> callback) {
+            this.callback = callback;
+            this.values = new HashMap<>(keysCount);
+            this.remaining = keysCount;
+        }
+
+        void done(String key, String value, Exception e) {
+            synchronized (this) {
+                if (e != null && firstException == null) {
+                    firstException = e;
+                } else if (value != null) {
+                    values.put(key, value);
+                }
+                if (--remaining > 0) {
+                    return;
+                }
+            }
+
+            callback.done(firstException == null ? values : null, firstException);
+        }
+    }
+
+    @Override
+    public void upsert(String packageName, Map<String, String> entries, Callback<Void> callback) {
+        synchronized (pendingGets) {
+            for (String key : entries.keySet()) {
+                pendingGets.remove(identityOf(packageName, key));
+            }
+        }
+        detachPages(packageName);
+
+        backend.upsert(packageName, entries, callback);
+    }
+
+    @Override
+    public void remove(String packageName, Collection<String> keys, Callback<Void> callback) {
+        synchronized (pendingGets) {
+            for (String key : keys) {
+                pendingGets.remove(identityOf(packageName, key));
+            }
+        }
+        detachPages(packageName);
+
+        backend.remove(packageName, keys, callback);
+    }
+
+    @Override
+    public Subscription subscribe(String packageName, ChangeListener listener) {
+        return backend.subscribe(packageName, listener);
+    }
+
+    @Override
+    public void listPage(final String packageName, int offset, int pageSize, final Callback<Page> callback) {
+        final String identity = identityOf(packageName, offset + "/" + pageSize);
+        final List<Callback<Page>> waitingCallbacks;
+        synchronized (pendingPages) {
+            List<Callback<Page>> pendingCallbacks = pendingPages.get(identity);
+            if (pendingCallbacks != null) {
+                pendingCallbacks.add(callback);
+                return;
+            }
+            waitingCallbacks = new ArrayList<>();
+            waitingCallbacks.add(callback);
+            pendingPages.put(identity, waitingCallbacks);
+        }
+
+        backend.listPage(packageName, offset, pageSize, new Callback<Page>() {
+            @Override
+            public void done(Page page, Exception e) {
+                ArrayList<Callback<Page>> callbacks;
+                synchronized (pendingPages) {
+                    if (pendingPages.get(identity) == waitingCallbacks) {
+                        pendingPages.remove(identity);
+                    }
+                    callbacks = new ArrayList<>(waitingCallbacks);
+                }
+                for (Callback<Page> waitingCallback : callbacks) {
+                    waitingCallback.done(page, e);
+                }
+            }
+        });
+    }
+
+    private void detachPages(String packageName) {
+        String packagePrefix = identityOf(packageName, "");
+        synchronized (pendingPages) {
+            Iterator<String> identities = pendingPages.keySet().iterator();
+            while (identities.hasNext()) {
+                if (identities.next().startsWith(packagePrefix)) {
+                    identities.remove();
+                }
+            }
+        }
+    }
+
+    private static String identityOf(String packageName, String key) {
+        return packageName + "/" + key;
+    }
+}
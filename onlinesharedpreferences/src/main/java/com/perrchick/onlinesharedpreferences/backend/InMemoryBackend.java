@@ -0,0 +1,197 @@
+package com.perrchick.onlinesharedpreferences.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local stand-in for the cloud, keeps everything in memory.
+ * Useful for working offline and for testing and benchmarking the library without any network.
+ * A latency may be injected to every operation, to simulate the network. Without a latency, callbacks are called
+ * synchronously, on the calling thread.
+ */
+public class InMemoryBackend implements PreferencesBackend {
+    // Package name -> <key,value> combinations
+    private final HashMap<String, TreeMap<String, String>> packages = new HashMap<>();
+    private final ChangeListeners changeListeners = new ChangeListeners();
+    private ScheduledExecutorService latencyExecutor;
+    private volatile long latencyMillis;
+
+    public InMemoryBackend() {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis  The delay of every operation (and of its change notifications), in milliseconds
+     */
+    public InMemoryBackend(long latencyMillis) {
+        setLatency(latencyMillis);
+    }
+
+    public synchronized void setLatency(long latencyMillis) {
+        if (latencyMillis > 0 && latencyExecutor == null) {
+            latencyExecutor = Executors.newScheduledThreadPool(2);
+        }
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public void get(String packageName, Collection<String> keys, Callback<Map<String, String>> callback) {
+        HashMap<String, String> values = new HashMap<>(keys.size());
+        synchronized (packages) {
+            TreeMap<String, String> keysAndValues = packageOf(packageName);
+            for (String key : keys) {
+                String value = keysAndValues.get(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+        }
+
+        deliver(callback, values);
+    }
+
+    @Override
+    public void upsert(final String packageName, Map<String, String> entries, Callback<Void> callback) {
+        // The changes are applied at once, and published only after the delay
+        final List<Change> changes = new ArrayList<>(entries.size());
+        synchronized (packages) {
+            TreeMap<String, String> keysAndValues = packageOf(packageName);
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                String oldValue;
+                if (entry.getValue() == null) {
+                    oldValue = keysAndValues.remove(entry.getKey());
+                    if (oldValue != null) {
+                        changes.add(new Change(ChangeType.Removed, entry.getKey(), oldValue));
+                    }
+                } else {
+                    oldValue = keysAndValues.put(entry.getKey(), entry.getValue());
+                    if (!entry.getValue().equals(oldValue)) {
+                        changes.add(new Change(oldValue == null ? ChangeType.Added : ChangeType.Modified, entry.getKey(), entry.getValue()));
+                    }
+                }
+            }
+        }
+
+        deliver(callback, null);
+        if (!changes.isEmpty()) {
+            run(new Runnable() {
+                @Override
+                public void run() {
+                    for (Change change : changes) {
+                        changeListeners.notifyChanged(packageName, change.changeType, change.key, change.value);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void remove(String packageName, Collection<String> keys, Callback<Void> callback) {
+        HashMap<String, String> entries = new HashMap<>(keys.size());
+        for (String key : keys) {
+            entries.put(key, null);
+        }
+
+        upsert(packageName, entries, callback);
+    }
+
+    @Override
+    public void listPage(String packageName, int offset, int pageSize, Callback<Page> callback) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+        int totalCount;
+        synchronized (packages) {
+            TreeMap<String, String> sortedKeysAndValues = packageOf(packageName);
+            totalCount = sortedKeysAndValues.size();
+            int index = 0;
+            for (Map.Entry<String, String> entry : sortedKeysAndValues.entrySet()) {
+                if (index >= offset + pageSize) {
+                    break;
+                }
+                if (index >= offset) {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+                index++;
+            }
+        }
+
+        deliver(callback, new Page(entries, totalCount));
+    }
+
+    @Override
+    public Subscription subscribe(String packageName, final ChangeListener listener) {
+        Subscription subscription = changeListeners.add(packageName, listener);
+        final Map<String, String> snapshot = getAll(packageName);
+        run(new Runnable() {
+            @Override
+            public void run() {
+                listener.onSnapshot(snapshot);
+            }
+        });
+
+        return subscription;
+    }
+
+    /**
+     * Gets a copy of everything that is currently saved for the package
+     * @param packageName  The package that owns the keys
+     * @return All the <key,value> combinations of the package
+     */
+    public Map<String, String> getAll(String packageName) {
+        synchronized (packages) {
+            return new HashMap<>(packageOf(packageName));
+        }
+    }
+
+    private TreeMap<String, String> packageOf(String packageName) {
+        TreeMap<String, String> keysAndValues = packages.get(packageName);
+        if (keysAndValues == null) {
+            // Sorted, for paging
+            keysAndValues = new TreeMap<>();
+            packages.put(packageName, keysAndValues);
+        }
+
+        return keysAndValues;
+    }
+
+    private static class Change {
+        final ChangeType changeType;
+        final String key;
+        final String value;
+
+        Change(ChangeType changeType, String key, String value) {
+            this.changeType = changeType;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private <T> void deliver(final Callback<T> callback, final T result) {
+        if (callback == null) {
+            return;
+        }
+
+        run(new Runnable() {
+            @Override
+            public void run() {
+                callback.done(result, null);
+            }
+        });
+    }
+
+    private void run(Runnable runnable) {
+        long latencyMillis = this.latencyMillis;
+        if (latencyMillis > 0) {
+            latencyExecutor.schedule(runnable, latencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            runnable.run();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.perrchick.onlinesharedpreferences.backend;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The storage behind the online shared preferences (get, multi-get, upsert, remove, list a page and subscribe for changes).
+ * Every value is identified by the combination of (package name, key), there's never more than one value per identity.
+ * Callbacks may be called on any thread.
+ */
+public interface PreferencesBackend {
+    interface Callback<T> {
+        void done(T result, Exception e);
+    }
+
+    enum ChangeType {
+        Added,
+        Modified,
+        Removed
+    }
+
+    interface ChangeListener {
+        /**
+         * Called once, shortly after subscribing, with all the current <key,value> combinations of the package.
+         * Changes that were delivered before it are already included in it.
+         * @param keysAndValues   The whole package
+         */
+        void onSnapshot(Map<String, String> keysAndValues);
+
+        /**
+         * @param changeType   What happened to the key
+         * @param key          The key that identifies the value
+         * @param value        The new value, or the last value if the key was removed
+         */
+        void onChanged(ChangeType changeType, String key, String value);
+
+        void onError(Exception e);
+    }
+
+    interface Subscription {
+        void unsubscribe();
+    }
+
+    /**
+     * A single page of a package's <key,value> combinations, ordered by key
+     */
+    class Page {
+        private final Map<String, String> entries;
+        private final int totalCount;
+
+        public Page(Map<String, String> entries, int totalCount) {
+            this.entries = entries;
+            this.totalCount = totalCount;
+        }
+
+        public Map<String, String> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return The number of <key,value> combinations in the whole package (all pages)
+         */
+        public int getTotalCount() {
+            return totalCount;
+        }
+    }
+
+    /**
+     * Gets the values of all the given keys, in as few requests as possible
+     * @param packageName  The package that owns the keys
+     * @param keys         The keys that identify the values
+     * @param callback     The callback object that will be called with the found <key,value> combinations, missing keys won't be there
+     */
+    void get(String packageName, Collection<String> keys, Callback<Map<String, String>> callback);
+
+    /**
+     * Inserts or updates all the given entries as a single operation, the callback will be called once for all of them.
+     * Upserting the same entries again has no further effect.
+     * @param packageName  The package that owns the keys
+     * @param entries      The <key,value> combinations to save, a null value removes the key
+     * @param callback     The callback object that will be called when the upsert is done, may be null
+     */
+    void upsert(String packageName, Map<String, String> entries, Callback<Void> callback);
+
+    /**
+     * Removes all the given keys as a single operation, removing a missing key has no effect
+     * @param packageName  The package that owns the keys
+     * @param keys         The keys to remove
+     * @param callback     The callback object that will be called when the removal is done, may be null
+     */
+    void remove(String packageName, Collection<String> keys, Callback<Void> callback);
+
+    /**
+     * Gets a single page of the package's <key,value> combinations, ordered by key.
+     * Pages may be requested concurrently.
+     * @param packageName  The package that owns the keys
+     * @param offset       The index of the first combination in the page
+     * @param pageSize     The maximum number of combinations in the page
+     * @param callback     The callback object that will be called with the page
+     */
+    void listPage(String packageName, int offset, int pageSize, Callback<Page> callback);
+
+    /**
+     * Subscribes for the changes in the package, until unsubscribing.
+     * The listener gets the initial snapshot of the package first (see {@link ChangeListener#onSnapshot(Map)}), and then every change.
+     * @param packageName  The package that owns the keys
+     * @param listener     The listener that will be called for every change
+     * @return The subscription, for unsubscribing
+     */
+    Subscription subscribe(String packageName, ChangeListener listener);
+}
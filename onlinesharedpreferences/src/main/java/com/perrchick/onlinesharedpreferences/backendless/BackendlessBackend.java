@@ -0,0 +1,421 @@
+package com.perrchick.onlinesharedpreferences.backendless;
+
+import android.util.Log;
+
+import com.backendless.Backendless;
+import com.backendless.BackendlessCollection;
+import com.backendless.async.callback.BackendlessCallback;
+import com.backendless.exceptions.BackendlessException;
+import com.backendless.exceptions.BackendlessFault;
+import com.backendless.persistence.BackendlessDataQuery;
+import com.backendless.persistence.QueryOptions;
+import com.perrchick.onlinesharedpreferences.backend.ChangeListeners;
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the preferences in Backendless, treats (package name, key) as the unique identity of each saved object.
+ * Backendless has no unique constraints, so the identity is kept by the client: upserts of the same key are serialized,
+ * an unknown key is looked up before it's created, and duplications that were created anyway (i.e. by two devices at once)
+ * are cleaned up on the next lookup, keeping the oldest object.
+ * Backendless doesn't push changes to its clients, so the subscribers are notified only about the writes that were made through this backend.
+ */
+public class BackendlessBackend implements PreferencesBackend {
+    private static final String TAG = BackendlessBackend.class.getSimpleName();
+
+    static final String SAVED_OBJECT_KEY = "key";
+    static final String SAVED_OBJECT_PACKAGE_NAME = "packageName";
+    // Set by Backendless when the object is saved for the first time
+    static final String SAVED_OBJECT_CREATED = "created";
+    // Backendless won't return more than 100 objects per page
+    static final int MAX_PAGE_SIZE = 100;
+    // Keeps the 'in (...)' clause reasonably short, and leaves room in the page for leftover duplications
+    static final int MAX_KEYS_PER_QUERY = 50;
+    static final int MAX_KNOWN_OBJECT_IDS = 10 * 1000;
+
+    // (package name, key) -> object ID, learned from previous round trips, the least recently used ones are forgotten.
+    // A known object ID turns the upsert into a single round trip.
+    private final Map<String, String> objectIds = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_KNOWN_OBJECT_IDS;
+        }
+    });
+    // Upserts of the same (package name, key) run one after another, so two upserts of an unknown key won't both create it
+    private final KeyedTaskQueue upsertQueue = new KeyedTaskQueue();
+    private final ChangeListeners changeListeners = new ChangeListeners();
+
+    @Override
+    public void get(final String packageName, Collection<String> keys, final Callback<Map<String, String>> callback) {
+        final ArrayList<String> keysList = new ArrayList<>(new LinkedHashSet<>(keys));
+        final HashMap<String, String> values = new HashMap<>(keysList.size());
+        if (keysList.isEmpty()) {
+            callback.done(values, null);
+            return;
+        }
+
+        // One query for every chunk of keys, all chunks are queried concurrently
+        final BatchCallback batchCallback = new BatchCallback(new Callback<Void>() {
+            @Override
+            public void done(Void result, Exception e) {
+                callback.done(e == null ? values : null, e);
+            }
+        });
+        for (int from = 0; from < keysList.size(); from += MAX_KEYS_PER_QUERY) {
+            List<String> chunk = keysList.subList(from, Math.min(from + MAX_KEYS_PER_QUERY, keysList.size()));
+            batchCallback.expect();
+            Backendless.Persistence.of(BackendlessSyncedObject.class).find(queryOf(packageName, chunk, 0), new BackendlessCallback<BackendlessCollection<BackendlessSyncedObject>>() {
+                @Override
+                public void handleResponse(BackendlessCollection<BackendlessSyncedObject> objects) {
+                    synchronized (values) {
+                        // Ordered by creation, the first object of each key is the one that upserts write to (like in resolve(...)),
+                        // the newer duplications may be stale
+                        for (BackendlessSyncedObject syncedObject : objects.getData()) {
+                            if (values.containsKey(syncedObject.getKey())) {
+                                removeDuplication(syncedObject);
+                                continue;
+                            }
+                            values.put(syncedObject.getKey(), syncedObject.getValue());
+                            rememberObjectId(identityOf(packageName, syncedObject.getKey()), syncedObject.getObjectId());
+                        }
+                    }
+                    batchCallback.done(null);
+                }
+
+                @Override
+                public void handleFault(BackendlessFault fault) {
+                    batchCallback.done(toException(fault));
+                }
+            });
+        }
+        batchCallback.seal();
+    }
+
+    /**
+     * Backendless has no bulk writes, so every key is still saved (or removed) by its own request, all of them concurrently.
+     * Upserts that share keys are queued, each one starts after the previous upsert of its keys is done.
+     */
+    @Override
+    public void upsert(final String packageName, final Map<String, String> entries, final Callback<Void> callback) {
+        ArrayList<String> identities = new ArrayList<>(entries.size());
+        for (String key : entries.keySet()) {
+            identities.add(identityOf(packageName, key));
+        }
+
+        upsertQueue.submit(identities, new KeyedTaskQueue.Task() {
+            @Override
+            public void run(final Runnable onFinished) {
+                upsertNow(packageName, entries, new Callback<Void>() {
+                    @Override
+                    public void done(Void result, Exception e) {
+                        onFinished.run();
+                        if (callback != null) {
+                            callback.done(null, e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Nothing else writes these keys meanwhile
+    private void upsertNow(final String packageName, final Map<String, String> entries, Callback<Void> callback) {
+        final BatchCallback batchCallback = new BatchCallback(callback);
+
+        final ArrayList<String> unresolvedKeys = new ArrayList<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String objectId = objectIds.get(identityOf(packageName, entry.getKey()));
+            if (objectId != null) {
+                write(packageName, entry.getKey(), entry.getValue(), objectId, batchCallback);
+            } else {
+                unresolvedKeys.add(entry.getKey());
+            }
+        }
+
+        // Keys that weren't seen lately are resolved with one query per chunk, and only then written
+        for (int from = 0; from < unresolvedKeys.size(); from += MAX_KEYS_PER_QUERY) {
+            final List<String> keys = unresolvedKeys.subList(from, Math.min(from + MAX_KEYS_PER_QUERY, unresolvedKeys.size()));
+            batchCallback.expect();
+            resolve(packageName, keys, 0, new HashMap<String, String>(), new ArrayList<BackendlessSyncedObject>(), new Callback<Map<String, String>>() {
+                @Override
+                public void done(Map<String, String> resolvedObjectIds, Exception e) {
+                    if (e != null) {
+                        batchCallback.done(e);
+                        return;
+                    }
+
+                    for (String key : keys) {
+                        write(packageName, key, entries.get(key), resolvedObjectIds.get(key), batchCallback);
+                    }
+                    batchCallback.done(null);
+                }
+            });
+        }
+
+        batchCallback.seal();
+    }
+
+    /**
+     * Finds the object IDs of the keys, page after page, and removes the duplications once all the pages are read
+     * @param resolvedObjectIds   Key -> the ID of its oldest object, collected so far
+     * @param duplications        The newer objects of the same keys, collected so far
+     */
+    private void resolve(final String packageName, final List<String> keys, final int offset, final HashMap<String, String> resolvedObjectIds,
+                         final ArrayList<BackendlessSyncedObject> duplications, final Callback<Map<String, String>> callback) {
+        Backendless.Persistence.of(BackendlessSyncedObject.class).find(queryOf(packageName, keys, offset), new BackendlessCallback<BackendlessCollection<BackendlessSyncedObject>>() {
+            @Override
+            public void handleResponse(BackendlessCollection<BackendlessSyncedObject> objects) {
+                // Ordered by creation, the first object of each key is the one that every device keeps
+                for (BackendlessSyncedObject existingObject : objects.getData()) {
+                    if (resolvedObjectIds.containsKey(existingObject.getKey())) {
+                        duplications.add(existingObject);
+                    } else {
+                        resolvedObjectIds.put(existingObject.getKey(), existingObject.getObjectId());
+                        objectIds.put(identityOf(packageName, existingObject.getKey()), existingObject.getObjectId());
+                    }
+                }
+
+                int nextOffset = offset + objects.getData().size();
+                if (!objects.getData().isEmpty() && nextOffset < objects.getTotalObjects()) {
+                    resolve(packageName, keys, nextOffset, resolvedObjectIds, duplications, callback);
+                    return;
+                }
+
+                // Removed only now, removing them while paging would shift the offsets
+                for (BackendlessSyncedObject duplication : duplications) {
+                    removeDuplication(duplication);
+                }
+                callback.done(resolvedObjectIds, null);
+            }
+
+            @Override
+            public void handleFault(BackendlessFault fault) {
+                callback.done(null, toException(fault));
+            }
+        });
+    }
+
+    @Override
+    public void remove(String packageName, Collection<String> keys, Callback<Void> callback) {
+        HashMap<String, String> entries = new HashMap<>(keys.size());
+        for (String key : keys) {
+            entries.put(key, null);
+        }
+
+        upsert(packageName, entries, callback);
+    }
+
+    @Override
+    public Subscription subscribe(String packageName, ChangeListener listener) {
+        Subscription subscription = changeListeners.add(packageName, listener);
+        listAll(packageName, 0, new HashMap<String, String>(), listener);
+
+        return subscription;
+    }
+
+    // Reads the pages one after another, for the initial snapshot
+    private void listAll(final String packageName, final int offset, final HashMap<String, String> keysAndValues, final ChangeListener listener) {
+        listPage(packageName, offset, MAX_PAGE_SIZE, new Callback<Page>() {
+            @Override
+            public void done(Page page, Exception e) {
+                if (e != null) {
+                    listener.onError(e);
+                    return;
+                }
+
+                for (Map.Entry<String, String> entry : page.getEntries().entrySet()) {
+                    // A key's duplications are ordered after its first object, and may start on the next page
+                    if (!keysAndValues.containsKey(entry.getKey())) {
+                        keysAndValues.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                int nextOffset = offset + page.getEntries().size();
+                if (page.getEntries().isEmpty() || nextOffset >= page.getTotalCount()) {
+                    listener.onSnapshot(keysAndValues);
+                } else {
+                    listAll(packageName, nextOffset, keysAndValues, listener);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void listPage(final String packageName, int offset, int pageSize, final Callback<Page> callback) {
+        BackendlessDataQuery query = new BackendlessDataQuery(SAVED_OBJECT_PACKAGE_NAME + " = " + quote(packageName));
+        QueryOptions queryOptions = new QueryOptions();
+        // A stable order, so the pages won't overlap, and the first object of each key comes first
+        queryOptions.addSortByOption(SAVED_OBJECT_KEY);
+        queryOptions.addSortByOption(SAVED_OBJECT_CREATED);
+        queryOptions.setPageSize(Math.min(pageSize, MAX_PAGE_SIZE));
+        queryOptions.setOffset(offset);
+        query.setQueryOptions(queryOptions);
+
+        Backendless.Persistence.of(BackendlessSyncedObject.class).find(query, new BackendlessCallback<BackendlessCollection<BackendlessSyncedObject>>() {
+            @Override
+            public void handleResponse(BackendlessCollection<BackendlessSyncedObject> objects) {
+                LinkedHashMap<String, String> entries = new LinkedHashMap<>(objects.getData().size());
+                for (BackendlessSyncedObject syncedObject : objects.getData()) {
+                    // Duplications are ignored, not removed, removing them while paging would shift the offsets
+                    if (entries.containsKey(syncedObject.getKey())) {
+                        continue;
+                    }
+                    entries.put(syncedObject.getKey(), syncedObject.getValue());
+                    rememberObjectId(identityOf(packageName, syncedObject.getKey()), syncedObject.getObjectId());
+                }
+                callback.done(new Page(entries, objects.getTotalObjects()), null);
+            }
+
+            @Override
+            public void handleFault(BackendlessFault fault) {
+                callback.done(null, toException(fault));
+            }
+        });
+    }
+
+    private void write(final String packageName, final String key, final String value, final String objectId, final BatchCallback batchCallback) {
+        if (value == null && objectId == null) {
+            // Nothing to remove
+            return;
+        }
+
+        final BackendlessSyncedObject syncedObject = new BackendlessSyncedObject(packageName);
+        syncedObject.setObjectId(objectId);
+        syncedObject.setKey(key);
+        syncedObject.setValue(value);
+
+        batchCallback.expect();
+        if (value == null) {
+            Backendless.Persistence.of(BackendlessSyncedObject.class).remove(syncedObject, new BackendlessCallback<Long>() {
+                @Override
+                public void handleResponse(Long aLong) {
+                    objectIds.remove(identityOf(packageName, key));
+                    batchCallback.done(null);
+                    changeListeners.notifyChanged(packageName, ChangeType.Removed, key, null);
+                }
+
+                @Override
+                public void handleFault(BackendlessFault fault) {
+                    objectIds.remove(identityOf(packageName, key));
+                    batchCallback.done(toException(fault));
+                }
+            });
+        } else {
+            Backendless.Persistence.of(BackendlessSyncedObject.class).save(syncedObject, new BackendlessCallback<BackendlessSyncedObject>() {
+                @Override
+                public void handleResponse(BackendlessSyncedObject savedObject) {
+                    objectIds.put(identityOf(packageName, key), savedObject.getObjectId());
+                    batchCallback.done(null);
+                    changeListeners.notifyChanged(packageName, objectId == null ? ChangeType.Added : ChangeType.Modified, key, value);
+                }
+
+                @Override
+                public void handleFault(BackendlessFault fault) {
+                    // The object ID might be stale, it will be resolved again on the next upsert
+                    objectIds.remove(identityOf(packageName, key));
+                    batchCallback.done(toException(fault));
+                }
+            });
+        }
+    }
+
+    static BackendlessDataQuery queryOf(String packageName, List<String> keys, int offset) {
+        StringBuilder whereClause = new StringBuilder(SAVED_OBJECT_PACKAGE_NAME + " = " + quote(packageName) + " and " + SAVED_OBJECT_KEY + " in (");
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0) {
+                whereClause.append(", ");
+            }
+            whereClause.append(quote(keys.get(i)));
+        }
+        whereClause.append(")");
+
+        BackendlessDataQuery query = new BackendlessDataQuery(whereClause.toString());
+        QueryOptions queryOptions = new QueryOptions();
+        // A stable order, so the pages won't overlap and the oldest duplication comes first
+        queryOptions.addSortByOption(SAVED_OBJECT_CREATED);
+        queryOptions.setPageSize(MAX_PAGE_SIZE);
+        queryOptions.setOffset(offset);
+        query.setQueryOptions(queryOptions);
+
+        return query;
+    }
+
+    static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * Removes a newer object of a key that already has an object.
+     * A leftover of an older (non unique) version or of a concurrent create, no need to wait for it.
+     */
+    private static void removeDuplication(BackendlessSyncedObject duplication) {
+        Log.v(TAG, "Removing duplication of '" + duplication.getKey() + "'");
+        Backendless.Persistence.of(BackendlessSyncedObject.class).remove(duplication, new BackendlessCallback<Long>() {
+            @Override
+            public void handleResponse(Long aLong) {
+            }
+        });
+    }
+
+    private void rememberObjectId(String identity, String objectId) {
+        synchronized (objectIds) {
+            // A known ID was already resolved, it wins over duplications
+            if (!objectIds.containsKey(identity)) {
+                objectIds.put(identity, objectId);
+            }
+        }
+    }
+
+    private static BackendlessException toException(BackendlessFault fault) {
+        return new BackendlessException(fault.getCode(), fault.getMessage());
+    }
+
+    private static String identityOf(String packageName, String key) {
+        return packageName + "/" + key;
+    }
+
+    /**
+     * Counts down the requests of a batch and calls the callback once, with the first fault (if any).
+     * Requests may be added until the batch is sealed.
+     */
+    private static class BatchCallback {
+        private final Callback<Void> callback;
+        // Starts with one, for the batch itself, until it's sealed
+        private int remaining = 1;
+        private BackendlessException firstFailure;
+
+        BatchCallback(Callback<Void> callback) {
+            this.callback = callback;
+        }
+
+        synchronized void expect() {
+            remaining++;
+        }
+
+        void seal() {
+            done(null);
+        }
+
+        void done(Exception e) {
+            synchronized (this) {
+                if (e != null && firstFailure == null) {
+                    firstFailure = e instanceof BackendlessException ? (BackendlessException) e : new BackendlessException("-1", e.getMessage());
+                }
+                if (--remaining > 0) {
+                    return;
+                }
+            }
+
+            if (callback != null) {
+                callback.done(null, firstFailure);
+            }
+        }
+    }
+}
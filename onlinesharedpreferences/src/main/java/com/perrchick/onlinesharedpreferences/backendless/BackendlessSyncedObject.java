@@ -1,11 +1,11 @@
 package com.perrchick.onlinesharedpreferences.backendless;
 
-import java.util.HashMap;
-
 /**
  * Created by perrchick on 2/5/16.
  */
 public class BackendlessSyncedObject {
+    // Assigned by Backendless, identifies the saved object
+    private String objectId;
     private String packageName;
     private String key;
     private String value;
@@ -18,6 +18,14 @@ public class BackendlessSyncedObject {
         setPackageName(packageName);
     }
 
+    public void setObjectId(String objectId) {
+        this.objectId = objectId;
+    }
+
+    public String getObjectId() {
+        return this.objectId;
+    }
+
     public void setPackageName(String packageName) {
         this.packageName = packageName;
     }
@@ -0,0 +1,108 @@
+package com.perrchick.onlinesharedpreferences.backendless;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Runs asynchronous tasks that share a key one after another, in the order they were submitted.
+ * Tasks of unrelated keys run concurrently. A task may have many keys, it waits until it's first in line for all of them,
+ * and since it's queued for all of them at once, two tasks can never wait for each other.
+ */
+class KeyedTaskQueue {
+    interface Task {
+        /**
+         * @param onFinished   Must be called once, when the task is finished (on any thread)
+         */
+        void run(Runnable onFinished);
+    }
+
+    // Key -> the tasks of that key, the first one is running
+    private final HashMap<String, ArrayDeque<QueuedTask>> queues = new HashMap<>();
+
+    private static class QueuedTask {
+        final ArrayList<String> keys;
+        final Task task;
+        // The number of queues in which this task isn't first yet
+        int waitingQueuesCount;
+        boolean isFinished;
+
+        QueuedTask(ArrayList<String> keys, Task task) {
+            this.keys = keys;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Runs the task as soon as all the earlier tasks of its keys are finished, may run it right away on the calling thread
+     * @param keys   The keys that the task touches
+     * @param task   The task
+     */
+    void submit(Collection<String> keys, Task task) {
+        QueuedTask queuedTask = new QueuedTask(new ArrayList<>(new LinkedHashSet<>(keys)), task);
+        synchronized (queues) {
+            for (String key : queuedTask.keys) {
+                ArrayDeque<QueuedTask> queue = queues.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    queues.put(key, queue);
+                }
+                if (!queue.isEmpty()) {
+                    queuedTask.waitingQueuesCount++;
+                }
+                queue.add(queuedTask);
+            }
+            if (queuedTask.waitingQueuesCount > 0) {
+                return;
+            }
+        }
+
+        run(queuedTask);
+    }
+
+    /**
+     * @return The number of keys that have running or waiting tasks
+     */
+    int getBusyKeysCount() {
+        synchronized (queues) {
+            return queues.size();
+        }
+    }
+
+    private void run(final QueuedTask queuedTask) {
+        queuedTask.task.run(new Runnable() {
+            @Override
+            public void run() {
+                onFinished(queuedTask);
+            }
+        });
+    }
+
+    private void onFinished(QueuedTask finishedTask) {
+        ArrayList<QueuedTask> readyTasks = new ArrayList<>();
+        synchronized (queues) {
+            if (finishedTask.isFinished) {
+                return;
+            }
+            finishedTask.isFinished = true;
+
+            for (String key : finishedTask.keys) {
+                ArrayDeque<QueuedTask> queue = queues.get(key);
+                // The finished task is the first one
+                queue.poll();
+                QueuedTask nextTask = queue.peek();
+                if (nextTask == null) {
+                    queues.remove(key);
+                } else if (--nextTask.waitingQueuesCount == 0) {
+                    readyTasks.add(nextTask);
+                }
+            }
+        }
+
+        for (QueuedTask readyTask : readyTasks) {
+            run(readyTask);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.perrchick.onlinesharedpreferences.firebase;
+
+import android.content.Context;
+
+import com.firebase.client.ChildEventListener;
+import com.firebase.client.DataSnapshot;
+import com.firebase.client.Firebase;
+import com.firebase.client.FirebaseError;
+import com.firebase.client.ValueEventListener;
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Saves the preferences in Firebase, every package is a child of the app's root and every key is a child of its package.
+ * Keys (and package names) must be valid Firebase paths.
+ */
+public class FirebaseBackend implements PreferencesBackend {
+    private static boolean shouldInitializeFireBase = true;
+
+    private final Firebase rootRef;
+
+    /**
+     * Wraps a Firebase error, so it can be passed as an exception
+     */
+    public static class FirebaseErrorException extends Exception {
+        private final FirebaseError firebaseError;
+
+        public FirebaseErrorException(FirebaseError firebaseError) {
+            super(firebaseError.getMessage());
+            this.firebaseError = firebaseError;
+        }
+
+        public FirebaseError getFirebaseError() {
+            return firebaseError;
+        }
+    }
+
+    /**
+     * @param context          The application's context
+     * @param firebaseAppUrl   The URL of the app on Firebase
+     */
+    public FirebaseBackend(Context context, String firebaseAppUrl) {
+        synchronized (FirebaseBackend.class) {
+            if (shouldInitializeFireBase) {
+                Firebase.setAndroidContext(context);
+                shouldInitializeFireBase = false;
+            }
+        }
+
+        this.rootRef = new Firebase(firebaseAppUrl);
+    }
+
+    /**
+     * @return The reference of the package, for Firebase specific operations
+     */
+    public Firebase packageRef(String packageName) {
+        return rootRef.child(packageName);
+    }
+
+    @Override
+    public void get(String packageName, Collection<String> keys, final Callback<Map<String, String>> callback) {
+        final ArrayList<String> keysList = new ArrayList<>(keys);
+        final HashMap<String, String> values = new HashMap<>(keysList.size());
+        if (keysList.isEmpty()) {
+            callback.done(values, null);
+            return;
+        }
+
+        // All the listeners share the same connection, the values arrive in parallel
+        final int[] remaining = {keysList.size()};
+        final FirebaseError[] firstError = {null};
+        for (final String key : keysList) {
+            packageRef(packageName).child(key).addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    onValue(dataSnapshot.getValue() == null ? null : dataSnapshot.getValue().toString(), null);
+                }
+
+                @Override
+                public void onCancelled(FirebaseError firebaseError) {
+                    onValue(null, firebaseError);
+                }
+
+                private void onValue(String value, FirebaseError firebaseError) {
+                    synchronized (values) {
+                        if (firebaseError != null && firstError[0] == null) {
+                            firstError[0] = firebaseError;
+                        } else if (value != null) {
+                            values.put(key, value);
+                        }
+                        if (--remaining[0] > 0) {
+                            return;
+                        }
+                    }
+
+                    if (firstError[0] == null) {
+                        callback.done(values, null);
+                    } else {
+                        callback.done(null, new FirebaseErrorException(firstError[0]));
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void upsert(String packageName, Map<String, String> entries, final Callback<Void> callback) {
+        // A single atomic multi-path update, null values are removed
+        HashMap<String, Object> children = new HashMap<>(entries.size());
+        children.putAll(entries);
+        packageRef(packageName).updateChildren(children, new Firebase.CompletionListener() {
+            @Override
+            public void onComplete(FirebaseError firebaseError, Firebase firebase) {
+                if (callback != null) {
+                    callback.done(null, firebaseError == null ? null : new FirebaseErrorException(firebaseError));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void remove(String packageName, Collection<String> keys, Callback<Void> callback) {
+        HashMap<String, String> entries = new HashMap<>(keys.size());
+        for (String key : keys) {
+            entries.put(key, null);
+        }
+
+        upsert(packageName, entries, callback);
+    }
+
+    /**
+     * Firebase has no offsets, so the page is cut from the package's data (which Firebase keeps synced locally)
+     */
+    @Override
+    public void listPage(String packageName, final int offset, final int pageSize, final Callback<Page> callback) {
+        packageRef(packageName).orderByKey().addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+                int index = 0;
+                for (DataSnapshot child : dataSnapshot.getChildren()) {
+                    if (index >= offset + pageSize) {
+                        break;
+                    }
+                    if (index >= offset) {
+                        entries.put(child.getKey(), String.valueOf(child.getValue()));
+                    }
+                    index++;
+                }
+                callback.done(new Page(entries, (int) dataSnapshot.getChildrenCount()), null);
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+                callback.done(null, new FirebaseErrorException(firebaseError));
+            }
+        });
+    }
+
+    @Override
+    public Subscription subscribe(String packageName, final ChangeListener listener) {
+        final Firebase packageRef = packageRef(packageName);
+        final ChildEventListener childEventListener = packageRef.addChildEventListener(new ChildEventListener() {
+            @Override
+            public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+                listener.onChanged(ChangeType.Added, dataSnapshot.getKey(), String.valueOf(dataSnapshot.getValue()));
+            }
+
+            @Override
+            public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+                listener.onChanged(ChangeType.Modified, dataSnapshot.getKey(), String.valueOf(dataSnapshot.getValue()));
+            }
+
+            @Override
+            public void onChildRemoved(DataSnapshot dataSnapshot) {
+                listener.onChanged(ChangeType.Removed, dataSnapshot.getKey(), String.valueOf(dataSnapshot.getValue()));
+            }
+
+            @Override
+            public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+                listener.onChanged(ChangeType.Modified, dataSnapshot.getKey(), String.valueOf(dataSnapshot.getValue()));
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+                listener.onError(new FirebaseErrorException(firebaseError));
+            }
+        });
+
+        // Firebase fires value events after the child events of the same data, so the snapshot includes all the changes before it
+        packageRef.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                HashMap<String, String> keysAndValues = new HashMap<>((int) dataSnapshot.getChildrenCount());
+                for (DataSnapshot child : dataSnapshot.getChildren()) {
+                    keysAndValues.put(child.getKey(), String.valueOf(child.getValue()));
+                }
+                listener.onSnapshot(keysAndValues);
+            }
+
+            @Override
+            public void onCancelled(FirebaseError firebaseError) {
+                listener.onError(new FirebaseErrorException(firebaseError));
+            }
+        });
+
+        return new Subscription() {
+            @Override
+            public void unsubscribe() {
+                packageRef.removeEventListener(childEventListener);
+            }
+        };
+    }
+}
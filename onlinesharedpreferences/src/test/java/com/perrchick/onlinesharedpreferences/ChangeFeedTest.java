@@ -0,0 +1,82 @@
+package com.perrchick.onlinesharedpreferences;
+
+import com.perrchick.onlinesharedpreferences.SyncedSharedPreferences.SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeFeedTest {
+    @Test
+    public void changesAfterTheSequenceNumberAreReplayedInOrder() {
+        ChangeFeed feed = new ChangeFeed(8, 1);
+        feed.append(SyncedSharedPreferencesChangeType.Added, "a", "1");
+        long seen = feed.getLastSequenceNumber();
+        feed.append(SyncedSharedPreferencesChangeType.Added, "b", "2");
+        feed.append(SyncedSharedPreferencesChangeType.Modified, "a", "3");
+
+        assertEquals(Arrays.asList("Added: <b,2>", "Modified: <a,3>"), describe(feed.changesAfter(seen, "")));
+        assertEquals(Arrays.asList("Modified: <a,3>"), describe(feed.changesAfter(seen, "a")));
+        assertTrue(feed.changesAfter(feed.getLastSequenceNumber(), "").isEmpty());
+    }
+
+    @Test
+    public void emptyFeedHasNothingToReplay() {
+        ChangeFeed feed = new ChangeFeed(8, 1);
+
+        assertTrue(feed.changesAfter(feed.getLastSequenceNumber(), "").isEmpty());
+    }
+
+    @Test
+    public void droppedChangesCantBeReplayed() {
+        ChangeFeed feed = new ChangeFeed(2, 1);
+        long seen = feed.getLastSequenceNumber();
+        feed.append(SyncedSharedPreferencesChangeType.Added, "a", "1");
+        long seenFirst = feed.getLastSequenceNumber();
+        feed.append(SyncedSharedPreferencesChangeType.Added, "b", "2");
+        feed.append(SyncedSharedPreferencesChangeType.Added, "c", "3");
+
+        assertNull(feed.changesAfter(seen, ""));
+        assertEquals(Arrays.asList("Added: <b,2>", "Added: <c,3>"), describe(feed.changesAfter(seenFirst, "")));
+    }
+
+    @Test
+    public void sequenceNumberOfAnotherInstanceIsntReplayed() {
+        ChangeFeed previousFeed = new ChangeFeed(8, 1);
+        previousFeed.append(SyncedSharedPreferencesChangeType.Added, "a", "1");
+        ChangeFeed feed = new ChangeFeed(8, 2);
+        feed.append(SyncedSharedPreferencesChangeType.Added, "a", "1");
+        feed.append(SyncedSharedPreferencesChangeType.Added, "b", "2");
+
+        assertNull(feed.changesAfter(previousFeed.getLastSequenceNumber(), ""));
+        assertNull(feed.changesAfter(0, ""));
+        assertNull(feed.changesAfter(feed.getLastSequenceNumber() + 1, ""));
+    }
+
+    @Test
+    public void instancesStartAtDifferentEpochs() {
+        ChangeFeed feed = new ChangeFeed(8);
+        ChangeFeed otherFeed = new ChangeFeed(8);
+
+        // Might collide, once in millions
+        assertNotEquals(feed.getLastSequenceNumber(), otherFeed.getLastSequenceNumber());
+        assertTrue(feed.getLastSequenceNumber() > 0);
+        assertTrue(new ChangeFeed(8, ChangeFeed.MAX_EPOCH).getLastSequenceNumber() > 0);
+    }
+
+    private static List<String> describe(List<SyncedChange> changes) {
+        List<String> descriptions = new ArrayList<>();
+        for (SyncedChange change : changes) {
+            descriptions.add(change.toString());
+        }
+
+        return descriptions;
+    }
+}
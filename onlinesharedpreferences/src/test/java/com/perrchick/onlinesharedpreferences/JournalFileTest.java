@@ -0,0 +1,132 @@
+package com.perrchick.onlinesharedpreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournalFileTest {
+    private File file;
+    private JournalFile journalFile;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("journal", ".journal");
+        assertTrue(file.delete());
+        journalFile = new JournalFile(file);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void batchesAreReadBackCoalescedInTheOrderOfTheLastWrite() throws IOException {
+        journalFile.append(entries("a", "1", "b", "2"));
+        journalFile.append(entries("a", null, "c", "שלום"));
+
+        LinkedHashMap<String, String> coalesced = journalFile.readCoalesced(journalFile.length());
+        assertEquals(Arrays.asList("b", "a", "c"), new ArrayList<>(coalesced.keySet()));
+        assertEquals("2", coalesced.get("b"));
+        assertTrue(coalesced.containsKey("a"));
+        assertNull(coalesced.get("a"));
+        assertEquals("שלום", coalesced.get("c"));
+    }
+
+    @Test
+    public void incompleteBatchIsTruncated() throws IOException {
+        journalFile.append(entries("a", "1"));
+        long validLength = journalFile.length();
+        journalFile.append(entries("b", "2"));
+        cut(journalFile.length() - 3);
+
+        assertEquals(validLength, journalFile.read(journalFile.length(), new NoOpReader()));
+        assertTrue(journalFile.truncateIncompleteBatch());
+        assertEquals(validLength, journalFile.length());
+        assertFalse(journalFile.truncateIncompleteBatch());
+
+        journalFile.append(entries("c", "3"));
+        assertEquals(entries("a", "1", "c", "3"), journalFile.readCoalesced(journalFile.length()));
+    }
+
+    @Test
+    public void corruptedBatchEndsTheJournal() throws IOException {
+        journalFile.append(entries("a", "1"));
+        long validLength = journalFile.length();
+        journalFile.append(entries("b", "2"));
+
+        // Flip a byte inside the second batch, its checksum won't match
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(validLength + 4 + 5);
+            int b = randomAccessFile.read();
+            randomAccessFile.seek(validLength + 4 + 5);
+            randomAccessFile.write(b ^ 0xFF);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        assertEquals(entries("a", "1"), journalFile.readCoalesced(journalFile.length()));
+        assertEquals(validLength, journalFile.read(journalFile.length(), new NoOpReader()));
+    }
+
+    @Test
+    public void readingIsLimitedToTheGivenLength() throws IOException {
+        journalFile.append(entries("a", "1"));
+        long flushedLength = journalFile.length();
+        journalFile.append(entries("b", "2"));
+
+        assertEquals(entries("a", "1"), journalFile.readCoalesced(flushedLength));
+    }
+
+    @Test
+    public void droppingTheUploadedPrefixKeepsLaterBatches() throws IOException {
+        journalFile.append(entries("a", "1"));
+        long flushedLength = journalFile.length();
+        journalFile.append(entries("b", "2"));
+
+        journalFile.dropPrefix(flushedLength);
+        assertEquals(entries("b", "2"), journalFile.readCoalesced(journalFile.length()));
+
+        journalFile.dropPrefix(journalFile.length());
+        assertFalse(file.exists());
+        assertEquals(0, journalFile.readCoalesced(journalFile.length()).size());
+    }
+
+    private void cut(long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static Map<String, String> entries(String... keysAndValues) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            entries.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+
+        return entries;
+    }
+
+    private static class NoOpReader implements JournalFile.BatchReader {
+        @Override
+        public void onEntry(String key, String value) {
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.perrchick.onlinesharedpreferences;
+
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalMirrorTest {
+    private File spillDirectory;
+    private LocalMirror mirror;
+
+    @Before
+    public void setUp() throws IOException {
+        spillDirectory = File.createTempFile("localmirrortest", "");
+        assertTrue(spillDirectory.delete() && spillDirectory.mkdir());
+        mirror = new LocalMirror(spillDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        mirror.close();
+        File[] files = spillDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDirectory.delete();
+    }
+
+    @Test
+    public void snapshotReplacesTheContentAndReturnsTheRemovedKeys() {
+        assertTrue(mirror.loadSavedSnapshot(savedSnapshot(entries("a", "1", "b", "2"))));
+        assertTrue(mirror.isPossiblyStale());
+
+        mirror.startSync();
+        Map<String, String> removedKeysAndValues = mirror.applySnapshot(entries("a", "new", "c", "3"));
+
+        assertEquals(entries("b", "2"), removedKeysAndValues);
+        assertEquals(entries("a", "new", "c", "3"), allOf(mirror));
+        assertFalse(mirror.isPossiblyStale());
+        assertTrue(mirror.isReady());
+    }
+
+    @Test
+    public void snapshotDoesntUndoAChangeThatArrivedBeforeIt() {
+        mirror.startSync();
+        mirror.apply(PreferencesBackend.ChangeType.Modified, "a", "changed");
+        mirror.apply(PreferencesBackend.ChangeType.Added, "b", "added");
+
+        // Was taken before the changes
+        Map<String, String> removedKeysAndValues = mirror.applySnapshot(entries("a", "1"));
+
+        assertTrue(removedKeysAndValues.isEmpty());
+        assertEquals(entries("a", "changed", "b", "added"), allOf(mirror));
+    }
+
+    @Test
+    public void snapshotDoesntBringBackAKeyThatWasRemovedBeforeIt() {
+        assertTrue(mirror.loadSavedSnapshot(savedSnapshot(entries("a", "1", "b", "2"))));
+        mirror.startSync();
+        mirror.apply(PreferencesBackend.ChangeType.Removed, "a", null);
+
+        Map<String, String> removedKeysAndValues = mirror.applySnapshot(entries("a", "1", "b", "2"));
+
+        assertTrue(removedKeysAndValues.isEmpty());
+        assertEquals(entries("b", "2"), allOf(mirror));
+    }
+
+    @Test
+    public void changesBeforeTheSyncAreUpToTheSnapshot() {
+        mirror.apply(PreferencesBackend.ChangeType.Added, "a", "local");
+        mirror.startSync();
+
+        mirror.applySnapshot(entries("a", "1"));
+
+        assertEquals("1", mirror.get("a"));
+    }
+
+    @Test
+    public void laterSnapshotIsAppliedAsIs() {
+        mirror.startSync();
+        mirror.apply(PreferencesBackend.ChangeType.Added, "a", "1");
+        mirror.applySnapshot(Collections.<String, String>emptyMap());
+        assertEquals(entries("a", "1"), allOf(mirror));
+
+        // A resync without startSync, nothing is kept from before
+        mirror.applySnapshot(Collections.<String, String>emptyMap());
+        assertTrue(allOf(mirror).isEmpty());
+    }
+
+    @Test
+    public void savedValuesAreReadWhenTheyreNeeded() {
+        mirror.startSync();
+        mirror.apply(PreferencesBackend.ChangeType.Modified, "b", "changed");
+        assertTrue(mirror.loadSavedSnapshot(savedSnapshot(entries("a", "1", "b", "2", "c", "3"))));
+
+        assertTrue(mirror.isReady());
+        assertEquals("1", mirror.get("a"));
+        // The backend's change is newer than the saved value
+        assertEquals("changed", mirror.get("b"));
+        assertTrue(mirror.apply(PreferencesBackend.ChangeType.Removed, "c", null));
+        assertEquals(entries("a", "1", "b", "changed"), allOf(mirror));
+    }
+
+    @Test
+    public void inMemoryReadDoesntReadTheDevice() {
+        assertTrue(mirror.loadSavedSnapshot(savedSnapshot(entries("a", "1"))));
+        mirror.apply(PreferencesBackend.ChangeType.Added, "b", "2");
+
+        // Still on the device
+        assertNull(mirror.getInMemory("a"));
+        assertEquals("2", mirror.getInMemory("b"));
+        assertNull(mirror.getInMemory("missing"));
+
+        assertEquals("1", mirror.get("a"));
+        assertEquals("1", mirror.getInMemory("a"));
+    }
+
+    @Test
+    public void savedSnapshotIsIgnoredAfterTheBackendsSnapshot() {
+        SnapshotFile.Mapping savedSnapshot = savedSnapshot(entries("a", "1", "b", "2"));
+        mirror.startSync();
+        mirror.applySnapshot(entries("a", "new"));
+
+        assertFalse(mirror.loadSavedSnapshot(savedSnapshot));
+        assertFalse(mirror.isPossiblyStale());
+        assertEquals(entries("a", "new"), allOf(mirror));
+    }
+
+    @Test
+    public void valuesOverTheBudgetAreSpilledAndReadBack() {
+        HashMap<String, String> snapshot = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            snapshot.put("key" + i, "value" + i);
+        }
+        mirror.startSync();
+        mirror.applySnapshot(snapshot);
+
+        mirror.setMemoryBudget(1024);
+
+        assertEquals(1, spillDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.endsWith(".spill");
+            }
+        }).length);
+        assertEquals(snapshot, allOf(mirror));
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, mirror.get("key" + i));
+        }
+        assertTrue(mirror.apply(PreferencesBackend.ChangeType.Removed, "key0", null));
+        assertNull(mirror.get("key0"));
+    }
+
+    @Test
+    public void forEachVisitsOnlyThePrefix() {
+        mirror.startSync();
+        mirror.applySnapshot(entries("settings_volume", "1", "settings_theme", "dark", "other", "2"));
+        mirror.setMemoryBudget(0);
+
+        final Map<String, String> visited = new HashMap<>();
+        mirror.forEach("settings_", new LocalMirror.Visitor() {
+            @Override
+            public void visit(String key, String value) {
+                visited.put(key, value);
+            }
+        });
+
+        assertEquals(entries("settings_volume", "1", "settings_theme", "dark"), visited);
+    }
+
+    @Test
+    public void spilledValuesSurviveCompaction() {
+        mirror.startSync();
+        mirror.applySnapshot(Collections.<String, String>emptyMap());
+        mirror.setMemoryBudget(0);
+        String largeValue = new String(new char[100 * 1024]).replace('\0', 'x');
+        // Every change spills its value and leaves the previous one as garbage, until the file is compacted
+        for (int i = 0; i < 40; i++) {
+            mirror.apply(PreferencesBackend.ChangeType.Modified, "key" + (i % 4), largeValue + i);
+        }
+
+        assertEquals(entries("key0", largeValue + 36, "key1", largeValue + 37, "key2", largeValue + 38, "key3", largeValue + 39), allOf(mirror));
+        assertEquals(largeValue + 39, mirror.get("key3"));
+    }
+
+    private SnapshotFile.Mapping savedSnapshot(Map<String, String> keysAndValues) {
+        LocalMirror savedMirror = new LocalMirror(spillDirectory);
+        savedMirror.applySnapshot(keysAndValues);
+        SnapshotFile snapshotFile = new SnapshotFile(new File(spillDirectory, "test.snapshot"));
+        try {
+            snapshotFile.write(savedMirror);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return snapshotFile.map();
+    }
+
+    private static Map<String, String> allOf(LocalMirror mirror) {
+        final Map<String, String> keysAndValues = new HashMap<>();
+        mirror.forEach("", new LocalMirror.Visitor() {
+            @Override
+            public void visit(String key, String value) {
+                keysAndValues.put(key, value);
+            }
+        });
+
+        return keysAndValues;
+    }
+
+    private static Map<String, String> entries(String... keysAndValues) {
+        HashMap<String, String> entries = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            entries.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+
+        return entries;
+    }
+}
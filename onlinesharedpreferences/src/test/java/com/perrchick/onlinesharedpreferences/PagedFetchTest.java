@@ -0,0 +1,237 @@
+package com.perrchick.onlinesharedpreferences;
+
+import com.backendless.exceptions.BackendlessException;
+import com.perrchick.onlinesharedpreferences.backend.InMemoryBackend;
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PagedFetchTest {
+    private static final String PACKAGE_NAME = "com.perrchick.test";
+
+    /**
+     * Collects the pages, and the result of the fetch
+     */
+    private static class RecordingCallback implements OnlineSharedPreferences.GetAllObjectsPageCallback {
+        final HashMap<String, String> objects = new HashMap<>();
+        int pagesCount;
+        int stopAfterPages = Integer.MAX_VALUE;
+        int doneCalls;
+        int doneObjectsCount = -1;
+        BackendlessException e;
+
+        @Override
+        public boolean onPage(HashMap<String, String> objects) {
+            this.objects.putAll(objects);
+            return ++pagesCount < stopAfterPages;
+        }
+
+        @Override
+        public void done(int objectsCount, BackendlessException e) {
+            doneCalls++;
+            doneObjectsCount = objectsCount;
+            this.e = e;
+        }
+    }
+
+    @Test
+    public void allPagesAreDelivered() {
+        InMemoryBackend backend = backendWith(25);
+        RecordingCallback callback = new RecordingCallback();
+
+        new PagedFetch(backend, PACKAGE_NAME, 10, 2, callback).start();
+
+        assertEquals(backend.getAll(PACKAGE_NAME), callback.objects);
+        assertEquals(3, callback.pagesCount);
+        assertEquals(1, callback.doneCalls);
+        assertEquals(25, callback.doneObjectsCount);
+        assertNull(callback.e);
+    }
+
+    @Test
+    public void emptyPackageIsDone() {
+        RecordingCallback callback = new RecordingCallback();
+
+        new PagedFetch(new InMemoryBackend(), PACKAGE_NAME, 10, 2, callback).start();
+
+        assertEquals(0, callback.pagesCount);
+        assertEquals(1, callback.doneCalls);
+        assertEquals(0, callback.doneObjectsCount);
+    }
+
+    @Test
+    public void fetchingStopsWhenTheCallbackSaysSo() {
+        RecordingCallback callback = new RecordingCallback();
+        callback.stopAfterPages = 2;
+
+        new PagedFetch(backendWith(100), PACKAGE_NAME, 10, 1, callback).start();
+
+        assertEquals(2, callback.pagesCount);
+        assertEquals(1, callback.doneCalls);
+        assertEquals(20, callback.doneObjectsCount);
+    }
+
+    @Test
+    public void failureIsReportedOnce() {
+        ManualBackend backend = new ManualBackend(50);
+        RecordingCallback callback = new RecordingCallback();
+
+        new PagedFetch(backend, PACKAGE_NAME, 1, 3, callback).start();
+        backend.complete(0);
+        backend.fail(1);
+        backend.complete(2);
+        backend.fail(3);
+
+        assertEquals(1, callback.doneCalls);
+        assertNotNull(callback.e);
+    }
+
+    /**
+     * A page that arrived but wasn't delivered yet is still in memory, and must count against the limit
+     */
+    @Test
+    public void pageWaitingForDeliveryCountsAgainstTheLimit() throws InterruptedException {
+        final int maxPagesInFlight = 2;
+        final ManualBackend backend = new ManualBackend(10);
+        final CountDownLatch isDeliveringSecondPage = new CountDownLatch(1);
+        final CountDownLatch releaseSecondPage = new CountDownLatch(1);
+        RecordingCallback callback = new RecordingCallback() {
+            @Override
+            public boolean onPage(HashMap<String, String> objects) {
+                if (objects.containsKey(ManualBackend.keyOf(1))) {
+                    isDeliveringSecondPage.countDown();
+                    await(releaseSecondPage);
+                }
+                boolean shouldContinue = super.onPage(objects);
+                backend.onDelivered();
+                return shouldContinue;
+            }
+        };
+
+        new PagedFetch(backend, PACKAGE_NAME, 1, maxPagesInFlight, callback).start();
+        backend.complete(0);
+
+        Thread secondPage = completeInBackground(backend, 1);
+        await(isDeliveringSecondPage);
+        // Arrives while the second page is being delivered, and waits for its turn
+        Thread thirdPage = completeInBackground(backend, 2);
+        while (thirdPage.getState() != Thread.State.BLOCKED) {
+            Thread.sleep(1);
+        }
+        releaseSecondPage.countDown();
+        secondPage.join();
+        thirdPage.join();
+
+        assertTrue("Held " + backend.maxPagesInMemory + " pages", backend.maxPagesInMemory <= maxPagesInFlight);
+    }
+
+    private static Thread completeInBackground(final ManualBackend backend, final int offset) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                backend.complete(offset);
+            }
+        });
+        thread.start();
+
+        return thread;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static InMemoryBackend backendWith(int objectsCount) {
+        InMemoryBackend backend = new InMemoryBackend();
+        HashMap<String, String> entries = new HashMap<>();
+        for (int i = 0; i < objectsCount; i++) {
+            entries.put(ManualBackend.keyOf(i), "value" + i);
+        }
+        backend.upsert(PACKAGE_NAME, entries, null);
+
+        return backend;
+    }
+
+    /**
+     * Answers page requests only when the test says so, and counts the pages that were requested and not delivered yet
+     */
+    private static class ManualBackend implements PreferencesBackend {
+        private final int totalCount;
+        private final HashMap<Integer, Callback<Page>> pendingRequests = new HashMap<>();
+        private int requestedPagesCount;
+        private int deliveredPagesCount;
+        int maxPagesInMemory;
+
+        ManualBackend(int totalCount) {
+            this.totalCount = totalCount;
+        }
+
+        static String keyOf(int index) {
+            // Sorted like the indices
+            return String.format("key%04d", index);
+        }
+
+        @Override
+        public synchronized void listPage(String packageName, int offset, int pageSize, Callback<Page> callback) {
+            pendingRequests.put(offset, callback);
+            requestedPagesCount++;
+            maxPagesInMemory = Math.max(maxPagesInMemory, requestedPagesCount - deliveredPagesCount);
+        }
+
+        synchronized void onDelivered() {
+            deliveredPagesCount++;
+        }
+
+        void complete(int offset) {
+            Callback<Page> callback;
+            synchronized (this) {
+                callback = pendingRequests.remove(offset);
+            }
+            HashMap<String, String> entries = new HashMap<>();
+            entries.put(keyOf(offset), "value" + offset);
+            callback.done(new Page(entries, totalCount), null);
+        }
+
+        void fail(int offset) {
+            Callback<Page> callback;
+            synchronized (this) {
+                callback = pendingRequests.remove(offset);
+            }
+            callback.done(null, new Exception("Page " + offset + " failed"));
+        }
+
+        @Override
+        public void get(String packageName, Collection<String> keys, Callback<Map<String, String>> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void upsert(String packageName, Map<String, String> entries, Callback<Void> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void remove(String packageName, Collection<String> keys, Callback<Void> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Subscription subscribe(String packageName, ChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
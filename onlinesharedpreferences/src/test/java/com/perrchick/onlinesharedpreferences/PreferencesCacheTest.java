@@ -0,0 +1,97 @@
+package com.perrchick.onlinesharedpreferences;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class PreferencesCacheTest {
+    @Test
+    public void cachedValueIsServedUntilInvalidated() {
+        PreferencesCache cache = new PreferencesCache();
+        cache.put("key", "value", cache.getGeneration());
+
+        assertEquals("value", cache.get("key").getValue());
+        assertEquals(1, cache.getHitCount());
+
+        cache.invalidate("key");
+        assertNull(cache.get("key"));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void missingKeyIsCachedAsNull() {
+        PreferencesCache cache = new PreferencesCache();
+        cache.put("missing", null, cache.getGeneration());
+
+        PreferencesCache.Entry entry = cache.get("missing");
+        assertNotNull(entry);
+        assertNull(entry.getValue());
+    }
+
+    @Test
+    public void responseOfRequestSentBeforeInvalidationIsNotCached() {
+        PreferencesCache cache = new PreferencesCache();
+        long generation = cache.getGeneration();
+        cache.invalidate("key");
+
+        cache.put("key", "stale", generation);
+        HashMap<String, String> objects = new HashMap<>();
+        objects.put("key", "stale");
+        cache.putAll(objects, generation);
+
+        assertNull(cache.get("key"));
+        assertNull(cache.getAll());
+    }
+
+    @Test
+    public void expiredEntryIsDropped() {
+        PreferencesCache cache = new PreferencesCache();
+        cache.setTimeToLive("flag", 0);
+        cache.put("flag", "on", cache.getGeneration());
+        cache.put("other", "value", cache.getGeneration());
+
+        assertNull(cache.get("flag"));
+        assertEquals("value", cache.get("other").getValue());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvictedOverTheSizeLimit() {
+        // Every entry here is 32 + 2 * 1 + 2 * 1 = 36 bytes
+        PreferencesCache cache = new PreferencesCache(2 * 36, PreferencesCache.DEFAULT_TIME_TO_LIVE_MILLIS);
+        cache.put("a", "1", cache.getGeneration());
+        cache.put("b", "2", cache.getGeneration());
+        cache.get("a");
+        cache.put("c", "3", cache.getGeneration());
+
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a").getValue());
+        assertEquals("3", cache.get("c").getValue());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2 * 36, cache.getSizeBytes());
+    }
+
+    @Test
+    public void allObjectsAreCachedOnlyWhenSmallEnough() {
+        PreferencesCache cache = new PreferencesCache(4 * 36, PreferencesCache.DEFAULT_TIME_TO_LIVE_MILLIS);
+        HashMap<String, String> objects = new HashMap<>();
+        objects.put("a", "1");
+        cache.putAll(objects, cache.getGeneration());
+        assertEquals(objects, cache.getAll());
+
+        objects.put("b", "2");
+        cache.invalidateAll();
+        cache.putAll(objects, cache.getGeneration());
+        // Over a quarter of the cache, only the single values are kept
+        assertNull(cache.getAll());
+        assertEquals("2", cache.get("b").getValue());
+    }
+}
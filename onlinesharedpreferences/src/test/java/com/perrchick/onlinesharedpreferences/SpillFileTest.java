@@ -0,0 +1,140 @@
+package com.perrchick.onlinesharedpreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillFileTest {
+    // Twice the length that's worth compacting
+    private static final int LARGE_VALUES_COUNT = 20;
+    private static final String LARGE_VALUE = new String(new char[100 * 1024]).replace('\0', 'x');
+
+    private File directory;
+    private SpillFile spillFile;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("spillfiletest", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        spillFile = new SpillFile(directory);
+    }
+
+    @After
+    public void tearDown() {
+        spillFile.delete();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void valuesAreReadBackByTheirOffsets() throws IOException {
+        long first = spillFile.append("value");
+        long second = spillFile.append("");
+        long third = spillFile.append("\u05e2\u05e8\u05da \ud83d\ude00");
+
+        assertEquals("\u05e2\u05e8\u05da \ud83d\ude00", spillFile.read(third));
+        assertEquals("", spillFile.read(second));
+        assertEquals("value", spillFile.read(first));
+    }
+
+    @Test
+    public void fileIsCompactedOnlyWhenItsMostlyGarbage() throws IOException {
+        HashMap<String, Long> offsets = appendLargeValues();
+        assertFalse(spillFile.isMostlyGarbage());
+
+        for (int i = 0; i < LARGE_VALUES_COUNT / 2 + 1; i++) {
+            spillFile.discard(offsets.remove("key" + i));
+        }
+        assertTrue(spillFile.isMostlyGarbage());
+
+        Map<String, Long> compactedOffsets = spillFile.compact(offsets);
+        assertNotNull(compactedOffsets);
+        assertEquals(offsets.keySet(), compactedOffsets.keySet());
+        for (Map.Entry<String, Long> compactedOffset : compactedOffsets.entrySet()) {
+            assertEquals(LARGE_VALUE + compactedOffset.getKey(), spillFile.read(compactedOffset.getValue()));
+        }
+        assertFalse(spillFile.isMostlyGarbage());
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void fileIsntCompactedWhileItsRead() throws IOException {
+        HashMap<String, Long> offsets = appendLargeValues();
+        long offset = offsets.get("key0");
+
+        spillFile.lockForReading();
+        try {
+            assertNull(spillFile.compact(offsets));
+            // Still valid
+            assertEquals(LARGE_VALUE + "key0", spillFile.read(offset));
+        } finally {
+            spillFile.unlockForReading();
+        }
+        assertNotNull(spillFile.compact(offsets));
+    }
+
+    @Test
+    public void readsRunAlongWithAppends() throws Exception {
+        final long offset = spillFile.append("first");
+        final Exception[] failure = new Exception[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        spillFile.lockForReading();
+                        try {
+                            assertEquals("first", spillFile.read(offset));
+                        } finally {
+                            spillFile.unlockForReading();
+                        }
+                    }
+                } catch (Exception | AssertionError e) {
+                    failure[0] = new Exception(e);
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 1000; i++) {
+            spillFile.append("value" + i);
+        }
+        reader.join();
+
+        assertNull(failure[0]);
+    }
+
+    @Test
+    public void deletedFileStartsOver() throws IOException {
+        spillFile.append("value");
+        spillFile.delete();
+        assertEquals(0, directory.listFiles().length);
+
+        assertEquals(0, spillFile.append("again"));
+        assertEquals("again", spillFile.read(0));
+    }
+
+    private HashMap<String, Long> appendLargeValues() throws IOException {
+        HashMap<String, Long> offsets = new HashMap<>();
+        for (int i = 0; i < LARGE_VALUES_COUNT; i++) {
+            offsets.put("key" + i, spillFile.append(LARGE_VALUE + "key" + i));
+        }
+
+        return offsets;
+    }
+}
@@ -0,0 +1,105 @@
+package com.perrchick.onlinesharedpreferences;
+
+import com.firebase.client.FirebaseError;
+import com.perrchick.onlinesharedpreferences.SyncedSharedPreferences.SyncedSharedPreferencesListener;
+import com.perrchick.onlinesharedpreferences.SyncedSharedPreferences.SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType;
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionIndexTest {
+    /**
+     * Records the keys it was notified of
+     */
+    private static class RecordingListener implements SyncedSharedPreferencesListener {
+        final List<String> keys = new ArrayList<>();
+        int errorsCount;
+
+        @Override
+        public void onSyncedSharedPreferencesChanged(SyncedSharedPreferencesChangeType changeType, String key, String value) {
+            keys.add(key);
+        }
+
+        @Override
+        public void onSyncedSharedPreferencesError(FirebaseError error) {
+            errorsCount++;
+        }
+    }
+
+    private final SubscriptionIndex index = new SubscriptionIndex();
+
+    @Test
+    public void keyListenerGetsOnlyItsKey() {
+        RecordingListener listener = new RecordingListener();
+        index.add("volume", false, listener);
+
+        notifyChanged("volume", "volumeMax", "vol");
+
+        assertEquals(Collections.singletonList("volume"), listener.keys);
+    }
+
+    @Test
+    public void prefixListenerGetsEveryKeyThatStartsWithIt() {
+        RecordingListener listener = new RecordingListener();
+        index.add("settings_", true, listener);
+
+        notifyChanged("settings_volume", "settings_", "settings", "other_settings_volume");
+
+        assertEquals(Arrays.asList("settings_volume", "settings_"), listener.keys);
+    }
+
+    @Test
+    public void emptyPrefixMatchesEveryKey() {
+        RecordingListener listener = new RecordingListener();
+        index.add("", true, listener);
+
+        notifyChanged("a", "b", "");
+
+        assertEquals(Arrays.asList("a", "b", ""), listener.keys);
+    }
+
+    @Test
+    public void unsubscribedListenerIsntNotified() {
+        RecordingListener listener = new RecordingListener();
+        RecordingListener otherListener = new RecordingListener();
+        PreferencesBackend.Subscription subscription = index.add("settings_", true, listener);
+        index.add("settings_volume", false, otherListener);
+
+        subscription.unsubscribe();
+        subscription.unsubscribe();
+        notifyChanged("settings_volume");
+
+        assertTrue(listener.keys.isEmpty());
+        assertEquals(Collections.singletonList("settings_volume"), otherListener.keys);
+    }
+
+    @Test
+    public void errorReachesEveryListenerOnce() {
+        RecordingListener listener = new RecordingListener();
+        index.add("a", false, listener);
+        index.add("ab", true, listener);
+
+        index.notifyError(new FirebaseError(FirebaseError.UNKNOWN_ERROR, "Offline"));
+
+        assertEquals(1, listener.errorsCount);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void prefixWithSlashIsRejected() {
+        index.add("settings/", true, new RecordingListener());
+    }
+
+    private void notifyChanged(String... keys) {
+        for (String key : keys) {
+            index.notifyChanged(SyncedSharedPreferencesChangeType.Modified, key, "value");
+        }
+    }
+}
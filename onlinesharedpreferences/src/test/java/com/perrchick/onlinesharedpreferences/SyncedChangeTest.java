@@ -0,0 +1,70 @@
+package com.perrchick.onlinesharedpreferences;
+
+import com.perrchick.onlinesharedpreferences.SyncedSharedPreferences.SyncedSharedPreferencesListener.SyncedSharedPreferencesChangeType;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SyncedChangeTest {
+    @Test
+    public void addedThenRemovedCancelEachOther() {
+        assertNull(added("1").mergedWith(removed("1")));
+    }
+
+    @Test
+    public void addedThenModifiedIsAddedWithTheLastValue() {
+        assertMerged(SyncedSharedPreferencesChangeType.Added, "2", added("1").mergedWith(modified("2")));
+    }
+
+    @Test
+    public void modifiedThenRemovedIsRemoved() {
+        assertMerged(SyncedSharedPreferencesChangeType.Removed, "2", modified("2").mergedWith(removed("2")));
+    }
+
+    @Test
+    public void removedThenAddedIsModified() {
+        assertMerged(SyncedSharedPreferencesChangeType.Modified, "3", removed("1").mergedWith(added("3")));
+    }
+
+    @Test
+    public void removedThenModifiedIsModified() {
+        assertMerged(SyncedSharedPreferencesChangeType.Modified, "3", removed("1").mergedWith(modified("3")));
+    }
+
+    @Test
+    public void modifiedTwiceIsModifiedWithTheLastValue() {
+        assertMerged(SyncedSharedPreferencesChangeType.Modified, "3", modified("2").mergedWith(modified("3")));
+    }
+
+    @Test
+    public void sequenceMergesIntoItsNetEffect() {
+        SyncedChange[] changes = {added("1"), modified("2"), removed("2"), added("3"), modified("4")};
+        SyncedChange merged = null;
+        for (SyncedChange change : changes) {
+            // Like the batcher, a cancelled change leaves nothing to merge into
+            merged = merged == null ? change : merged.mergedWith(change);
+        }
+
+        assertMerged(SyncedSharedPreferencesChangeType.Added, "4", merged);
+    }
+
+    private static void assertMerged(SyncedSharedPreferencesChangeType changeType, String value, SyncedChange change) {
+        assertEquals(changeType, change.getChangeType());
+        assertEquals("key", change.getKey());
+        assertEquals(value, change.getValue());
+    }
+
+    private static SyncedChange added(String value) {
+        return new SyncedChange(SyncedSharedPreferencesChangeType.Added, "key", value);
+    }
+
+    private static SyncedChange modified(String value) {
+        return new SyncedChange(SyncedSharedPreferencesChangeType.Modified, "key", value);
+    }
+
+    private static SyncedChange removed(String value) {
+        return new SyncedChange(SyncedSharedPreferencesChangeType.Removed, "key", value);
+    }
+}
@@ -0,0 +1,128 @@
+package com.perrchick.onlinesharedpreferences;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SyncedFutureTest {
+    private static final SyncedFuture.Transformation<String, Integer> LENGTH = new SyncedFuture.Transformation<String, Integer>() {
+        @Override
+        public Integer transform(String value) {
+            return value.length();
+        }
+    };
+
+    private Handler dispatcher;
+
+    @Before
+    public void setUp() {
+        dispatcher = new Handler(Looper.getMainLooper());
+    }
+
+    @Test
+    public void transformedFutureGetsTheTransformedValue() throws Exception {
+        SyncedFuture<String> future = new SyncedFuture<>(dispatcher);
+        SyncedFuture<Integer> transformedFuture = future.then(LENGTH);
+
+        future.complete("value", null);
+
+        assertEquals(Integer.valueOf(5), transformedFuture.get(1000));
+    }
+
+    @Test
+    public void cancellingTheSourceCancelsTheTransformedFuture() {
+        SyncedFuture<String> future = new SyncedFuture<>(dispatcher);
+        SyncedFuture<Integer> transformedFuture = future.then(LENGTH);
+
+        assertTrue(future.cancel());
+
+        assertTrue(transformedFuture.isCancelled());
+    }
+
+    @Test
+    public void cancellingTheTransformedFutureCancelsTheSource() {
+        SyncedFuture<String> future = new SyncedFuture<>(dispatcher);
+        SyncedFuture<Integer> transformedFuture = future.then(LENGTH).then(new SyncedFuture.Transformation<Integer, Integer>() {
+            @Override
+            public Integer transform(Integer value) {
+                return value * 2;
+            }
+        });
+
+        assertTrue(transformedFuture.cancel());
+
+        assertTrue(future.isCancelled());
+        assertFalse(future.complete("value", null));
+    }
+
+    @Test
+    public void cancellingOneTransformedFutureDoesntCancelTheOthers() throws Exception {
+        SyncedFuture<String> future = new SyncedFuture<>(dispatcher);
+        SyncedFuture<Integer> transformedFuture = future.then(LENGTH);
+        SyncedFuture<Integer> otherTransformedFuture = future.then(LENGTH);
+
+        assertTrue(transformedFuture.cancel());
+        assertFalse(future.isCancelled());
+        assertTrue(future.complete("value", null));
+
+        assertEquals(Integer.valueOf(5), otherTransformedFuture.get(1000));
+    }
+
+    @Test
+    public void sourceWithACallbackIsntCancelledByItsTransformedFuture() {
+        final String[] delivered = new String[1];
+        SyncedFuture<String> future = new SyncedFuture<>(dispatcher);
+        future.then(new SyncedFuture.Callback<String>() {
+            @Override
+            public void done(String value, Exception e) {
+                delivered[0] = value;
+            }
+        });
+
+        assertTrue(future.then(LENGTH).cancel());
+        assertFalse(future.isCancelled());
+        assertTrue(future.complete("value", null));
+        assertEquals("value", delivered[0]);
+    }
+
+    @Test
+    public void transformingACancelledFutureGivesACancelledFuture() {
+        SyncedFuture<String> future = new SyncedFuture<>(dispatcher);
+        future.cancel();
+
+        assertTrue(future.then(LENGTH).isCancelled());
+    }
+
+    @Test
+    public void cancellingAfterTheResultHasArrivedHasNoEffect() throws Exception {
+        final String[] delivered = new String[1];
+        SyncedFuture<String> future = new SyncedFuture<>(dispatcher);
+        SyncedFuture<Integer> transformedFuture = future.then(LENGTH);
+        future.complete("value", null);
+
+        assertFalse(future.cancel());
+        assertFalse(transformedFuture.cancel());
+        assertEquals(Integer.valueOf(5), transformedFuture.get(1000));
+
+        future.then(new SyncedFuture.Callback<String>() {
+            @Override
+            public void done(String value, Exception e) {
+                assertNull(e);
+                delivered[0] = value;
+            }
+        });
+        assertEquals("value", delivered[0]);
+    }
+}
@@ -0,0 +1,166 @@
+package com.perrchick.onlinesharedpreferences;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.perrchick.onlinesharedpreferences.backend.PreferencesBackend;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WriteBufferTest {
+    private static final String PACKAGE_NAME = "com.perrchick.test";
+    // Long enough for the tests to flush by themselves
+    private static final long WINDOW_MILLIS = 60000;
+
+    private ScheduledExecutorService executor;
+    private HoldingBackend backend;
+    private WriteBuffer writeBuffer;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        backend = new HoldingBackend();
+        writeBuffer = new WriteBuffer(backend, PACKAGE_NAME, executor, new Handler(Looper.getMainLooper()), WINDOW_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void writesOfTheWindowAreSentTogetherWithTheLastValues() {
+        writeBuffer.write("a", "1", null);
+        writeBuffer.write("a", "2", null);
+        writeBuffer.write("b", null, null);
+        writeBuffer.flush();
+
+        assertEquals(Collections.singletonList(entries("a", "2", "b", null)), backend.upserts);
+    }
+
+    @Test
+    public void bufferedWritesAreReadBack() {
+        writeBuffer.write("a", "1", null);
+        writeBuffer.write("b", null, null);
+
+        assertEquals(entries("a", "1", "b", null), writeBuffer.getPendingEntries(Arrays.asList("a", "b", "c")));
+        assertEquals(entries("a", "1", "b", null), writeBuffer.getPendingEntries());
+    }
+
+    @Test
+    public void sentWritesAreReadBackUntilTheBackendConfirmsThem() {
+        writeBuffer.write("a", "1", null);
+        writeBuffer.flush();
+        writeBuffer.write("a", "2", null);
+        writeBuffer.write("b", "3", null);
+        writeBuffer.flush();
+
+        assertEquals(entries("a", "2", "b", "3"), writeBuffer.getPendingEntries());
+
+        backend.confirm(0, null);
+        assertEquals(entries("a", "2", "b", "3"), writeBuffer.getPendingEntries());
+
+        backend.confirm(1, new Exception("Offline"));
+        assertTrue(writeBuffer.getPendingEntries().isEmpty());
+    }
+
+    @Test
+    public void confirmedWriteOverridesTheOlderWritesOnTheirWay() {
+        writeBuffer.write("a", "1", null);
+        writeBuffer.write("b", "1", null);
+        writeBuffer.flush();
+        writeBuffer.write("a", "2", null);
+        writeBuffer.flush();
+
+        backend.confirm(1, null);
+
+        assertEquals(entries("b", "1"), writeBuffer.getPendingEntries());
+    }
+
+    @Test
+    public void everyWriteGetsTheOutcomeOfItsUpdate() {
+        final List<Exception> outcomes = new ArrayList<>();
+        SyncedSharedPreferences.WriteCallback callback = new SyncedSharedPreferences.WriteCallback() {
+            @Override
+            public void done(Exception e) {
+                outcomes.add(e);
+            }
+        };
+        writeBuffer.write("a", "1", callback);
+        writeBuffer.write("a", "2", callback);
+        writeBuffer.flush();
+        backend.confirm(0, null);
+
+        assertEquals(2, outcomes.size());
+        assertNull(outcomes.get(0));
+        assertNull(outcomes.get(1));
+    }
+
+    private static Map<String, String> entries(String... keysAndValues) {
+        HashMap<String, String> entries = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            entries.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Holds the upserts until the test confirms (or fails) them
+     */
+    private static class HoldingBackend implements PreferencesBackend {
+        final List<Map<String, String>> upserts = new ArrayList<>();
+        final List<Callback<Void>> upsertCallbacks = new ArrayList<>();
+
+        @Override
+        public void upsert(String packageName, Map<String, String> entries, Callback<Void> callback) {
+            upserts.add(new HashMap<>(entries));
+            upsertCallbacks.add(callback);
+        }
+
+        void confirm(int upsertIndex, Exception e) {
+            upsertCallbacks.get(upsertIndex).done(null, e);
+        }
+
+        @Override
+        public void get(String packageName, Collection<String> keys, Callback<Map<String, String>> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void remove(String packageName, Collection<String> keys, Callback<Void> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void listPage(String packageName, int offset, int pageSize, Callback<Page> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Subscription subscribe(String packageName, ChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.perrchick.onlinesharedpreferences.backend;
+
+import com.perrchick.onlinesharedpreferences.backend.InMemoryBackendTest.Result;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.perrchick.onlinesharedpreferences.backend.InMemoryBackendTest.entries;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CoalescingBackendTest {
+    private static final String PACKAGE_NAME = "com.perrchick.test";
+
+    private DeferredBackend deferredBackend;
+    private CoalescingBackend backend;
+
+    @Before
+    public void setUp() {
+        deferredBackend = new DeferredBackend();
+        deferredBackend.upsert(PACKAGE_NAME, entries("a", "1", "b", "2", "c", "3"), null);
+        backend = new CoalescingBackend(deferredBackend);
+    }
+
+    @Test
+    public void concurrentReadsOfTheSameKeyShareOneRequest() {
+        Result<Map<String, String>> first = new Result<>();
+        Result<Map<String, String>> second = new Result<>();
+        backend.get(PACKAGE_NAME, Collections.singleton("a"), first);
+        backend.get(PACKAGE_NAME, Collections.singleton("a"), second);
+        deferredBackend.deliverAll();
+
+        assertEquals(Collections.singletonList(Collections.singletonList("a")), deferredBackend.requestedKeys);
+        assertEquals(entries("a", "1"), first.value);
+        assertEquals(entries("a", "1"), second.value);
+    }
+
+    @Test
+    public void overlappingReadRequestsOnlyTheKeysThatArentOnTheirWay() {
+        Result<Map<String, String>> first = new Result<>();
+        Result<Map<String, String>> second = new Result<>();
+        backend.get(PACKAGE_NAME, Arrays.asList("a", "b"), first);
+        backend.get(PACKAGE_NAME, Arrays.asList("b", "c", "missing"), second);
+        deferredBackend.deliverAll();
+
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "missing")), deferredBackend.requestedKeys);
+        assertEquals(entries("a", "1", "b", "2"), first.value);
+        assertEquals(entries("b", "2", "c", "3"), second.value);
+    }
+
+    @Test
+    public void readAfterAWriteDoesntShareTheReadBeforeIt() {
+        Result<Map<String, String>> before = new Result<>();
+        Result<Map<String, String>> after = new Result<>();
+        backend.get(PACKAGE_NAME, Collections.singleton("a"), before);
+        backend.upsert(PACKAGE_NAME, entries("a", "new"), null);
+        backend.get(PACKAGE_NAME, Collections.singleton("a"), after);
+        deferredBackend.deliverAll();
+
+        assertEquals(2, deferredBackend.requestedKeys.size());
+        assertEquals(entries("a", "1"), before.value);
+        assertEquals(entries("a", "new"), after.value);
+    }
+
+    @Test
+    public void failureReachesEveryWaitingCaller() {
+        Result<Map<String, String>> first = new Result<>();
+        Result<Map<String, String>> second = new Result<>();
+        backend.get(PACKAGE_NAME, Collections.singleton("a"), first);
+        backend.get(PACKAGE_NAME, Arrays.asList("a", "b"), second);
+        Exception failure = new Exception("Offline");
+        deferredBackend.failAll(failure);
+
+        assertNull(first.value);
+        assertSame(failure, first.e);
+        assertNull(second.value);
+        assertSame(failure, second.e);
+        assertEquals(1, second.calls);
+    }
+
+    @Test
+    public void concurrentRequestsOfTheSamePageShareOneRequest() {
+        Result<PreferencesBackend.Page> first = new Result<>();
+        Result<PreferencesBackend.Page> second = new Result<>();
+        Result<PreferencesBackend.Page> otherPage = new Result<>();
+        backend.listPage(PACKAGE_NAME, 0, 2, first);
+        backend.listPage(PACKAGE_NAME, 0, 2, second);
+        backend.listPage(PACKAGE_NAME, 2, 2, otherPage);
+        deferredBackend.deliverAll();
+
+        assertEquals(2, deferredBackend.requestedPagesCount);
+        assertSame(first.value, second.value);
+        assertEquals(entries("a", "1", "b", "2"), first.value.getEntries());
+        assertEquals(entries("c", "3"), otherPage.value.getEntries());
+    }
+
+    @Test
+    public void pageRequestedAfterAWriteIsFetchedAgain() {
+        Result<PreferencesBackend.Page> before = new Result<>();
+        Result<PreferencesBackend.Page> after = new Result<>();
+        backend.listPage(PACKAGE_NAME, 0, 10, before);
+        backend.remove(PACKAGE_NAME, Collections.singleton("a"), null);
+        backend.listPage(PACKAGE_NAME, 0, 10, after);
+        deferredBackend.deliverAll();
+
+        assertEquals(2, deferredBackend.requestedPagesCount);
+        assertEquals(3, before.value.getTotalCount());
+        assertEquals(2, after.value.getTotalCount());
+    }
+
+    /**
+     * Reads from an in-memory backend right away, but holds the results until the test delivers them, like a slow network
+     */
+    private static class DeferredBackend implements PreferencesBackend {
+        private final InMemoryBackend backend = new InMemoryBackend();
+        private final List<Runnable> pendingDeliveries = new ArrayList<>();
+        private final List<Callback<?>> pendingCallbacks = new ArrayList<>();
+        final List<List<String>> requestedKeys = new ArrayList<>();
+        int requestedPagesCount;
+
+        @Override
+        public void get(String packageName, Collection<String> keys, final Callback<Map<String, String>> callback) {
+            requestedKeys.add(new ArrayList<>(keys));
+            final Result<Map<String, String>> result = new Result<>();
+            backend.get(packageName, keys, result);
+            defer(callback, new Runnable() {
+                @Override
+                public void run() {
+                    callback.done(result.value, null);
+                }
+            });
+        }
+
+        @Override
+        public void listPage(String packageName, int offset, int pageSize, final Callback<Page> callback) {
+            requestedPagesCount++;
+            final Result<Page> result = new Result<>();
+            backend.listPage(packageName, offset, pageSize, result);
+            defer(callback, new Runnable() {
+                @Override
+                public void run() {
+                    callback.done(result.value, null);
+                }
+            });
+        }
+
+        @Override
+        public void upsert(String packageName, Map<String, String> entries, Callback<Void> callback) {
+            backend.upsert(packageName, entries, callback);
+        }
+
+        @Override
+        public void remove(String packageName, Collection<String> keys, Callback<Void> callback) {
+            backend.remove(packageName, keys, callback);
+        }
+
+        @Override
+        public Subscription subscribe(String packageName, ChangeListener listener) {
+            return backend.subscribe(packageName, listener);
+        }
+
+        private void defer(Callback<?> callback, Runnable delivery) {
+            pendingCallbacks.add(callback);
+            pendingDeliveries.add(delivery);
+        }
+
+        void deliverAll() {
+            for (Runnable delivery : pendingDeliveries) {
+                delivery.run();
+            }
+            pendingDeliveries.clear();
+            pendingCallbacks.clear();
+        }
+
+        void failAll(Exception e) {
+            for (Callback<?> callback : pendingCallbacks) {
+                callback.done(null, e);
+            }
+            pendingDeliveries.clear();
+            pendingCallbacks.clear();
+        }
+    }
+}
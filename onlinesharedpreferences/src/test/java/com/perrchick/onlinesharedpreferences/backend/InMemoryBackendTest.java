@@ -0,0 +1,138 @@
+package com.perrchick.onlinesharedpreferences.backend;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The upsert contract of {@link PreferencesBackend}, against the in-memory reference backend.
+ */
+public class InMemoryBackendTest {
+    private static final String PACKAGE_NAME = "com.perrchick.test";
+
+    /**
+     * Keeps the result of a synchronous callback
+     */
+    static class Result<T> implements PreferencesBackend.Callback<T> {
+        T value;
+        Exception e;
+        int calls;
+
+        @Override
+        public void done(T result, Exception e) {
+            this.value = result;
+            this.e = e;
+            calls++;
+        }
+    }
+
+    @Test
+    public void upsertingTheSameKeyKeepsASingleValue() {
+        InMemoryBackend backend = new InMemoryBackend();
+        backend.upsert(PACKAGE_NAME, entries("key", "1"), null);
+        backend.upsert(PACKAGE_NAME, entries("key", "2"), null);
+
+        assertEquals(entries("key", "2"), backend.getAll(PACKAGE_NAME));
+    }
+
+    @Test
+    public void upsertIsIdempotentAndCallsBackOnce() {
+        InMemoryBackend backend = new InMemoryBackend();
+        RecordingListener listener = new RecordingListener();
+        backend.subscribe(PACKAGE_NAME, listener);
+
+        Result<Void> result = new Result<>();
+        backend.upsert(PACKAGE_NAME, entries("a", "1", "b", "2"), result);
+        backend.upsert(PACKAGE_NAME, entries("a", "1", "b", "2"), null);
+
+        assertEquals(1, result.calls);
+        assertNull(result.e);
+        // The repeated upsert changed nothing
+        assertEquals(Arrays.asList("Added a", "Added b"), listener.changes);
+    }
+
+    @Test
+    public void nullValueRemovesTheKey() {
+        InMemoryBackend backend = new InMemoryBackend();
+        backend.upsert(PACKAGE_NAME, entries("a", "1", "b", "2"), null);
+        backend.upsert(PACKAGE_NAME, entries("a", null, "missing", null), null);
+
+        assertEquals(entries("b", "2"), backend.getAll(PACKAGE_NAME));
+    }
+
+    @Test
+    public void packagesDontShareKeys() {
+        InMemoryBackend backend = new InMemoryBackend();
+        backend.upsert(PACKAGE_NAME, entries("key", "mine"), null);
+        backend.upsert("com.perrchick.other", entries("key", "theirs"), null);
+
+        Result<Map<String, String>> result = new Result<>();
+        backend.get(PACKAGE_NAME, Arrays.asList("key", "missing"), result);
+        assertEquals(entries("key", "mine"), result.value);
+    }
+
+    @Test
+    public void pagesAreOrderedByKeyAndCountTheWholePackage() {
+        InMemoryBackend backend = new InMemoryBackend();
+        backend.upsert(PACKAGE_NAME, entries("c", "3", "a", "1", "b", "2"), null);
+
+        Result<PreferencesBackend.Page> result = new Result<>();
+        backend.listPage(PACKAGE_NAME, 1, 5, result);
+        assertEquals(Arrays.asList("b", "c"), new ArrayList<>(result.value.getEntries().keySet()));
+        assertEquals(3, result.value.getTotalCount());
+    }
+
+    @Test
+    public void subscriberGetsTheSnapshotFirst() {
+        InMemoryBackend backend = new InMemoryBackend();
+        backend.upsert(PACKAGE_NAME, entries("a", "1"), null);
+
+        RecordingListener listener = new RecordingListener();
+        PreferencesBackend.Subscription subscription = backend.subscribe(PACKAGE_NAME, listener);
+        backend.upsert(PACKAGE_NAME, entries("a", "2"), null);
+        subscription.unsubscribe();
+        backend.upsert(PACKAGE_NAME, entries("a", null), null);
+
+        assertEquals(entries("a", "1"), listener.snapshot);
+        assertEquals(Arrays.asList("Modified a"), listener.changes);
+        assertTrue(listener.errors.isEmpty());
+    }
+
+    static class RecordingListener implements PreferencesBackend.ChangeListener {
+        Map<String, String> snapshot;
+        final List<String> changes = new ArrayList<>();
+        final List<Exception> errors = new ArrayList<>();
+
+        @Override
+        public void onSnapshot(Map<String, String> keysAndValues) {
+            snapshot = keysAndValues;
+        }
+
+        @Override
+        public void onChanged(PreferencesBackend.ChangeType changeType, String key, String value) {
+            changes.add(changeType + " " + key);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            errors.add(e);
+        }
+    }
+
+    static Map<String, String> entries(String... keysAndValues) {
+        HashMap<String, String> entries = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            entries.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+
+        return entries;
+    }
+}
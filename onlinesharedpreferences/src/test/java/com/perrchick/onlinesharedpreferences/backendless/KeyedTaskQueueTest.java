@@ -0,0 +1,104 @@
+package com.perrchick.onlinesharedpreferences.backendless;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeyedTaskQueueTest {
+    /**
+     * Records the order in which tasks start, and lets the test finish them one by one
+     */
+    private static class RecordingTask implements KeyedTaskQueue.Task {
+        private final String name;
+        private final List<String> startedTasks;
+        private Runnable onFinished;
+
+        RecordingTask(String name, List<String> startedTasks) {
+            this.name = name;
+            this.startedTasks = startedTasks;
+        }
+
+        @Override
+        public void run(Runnable onFinished) {
+            this.onFinished = onFinished;
+            startedTasks.add(name);
+        }
+
+        void finish() {
+            onFinished.run();
+        }
+    }
+
+    @Test
+    public void tasksOfTheSameKeyRunOneAfterAnother() {
+        KeyedTaskQueue queue = new KeyedTaskQueue();
+        List<String> startedTasks = new ArrayList<>();
+        RecordingTask first = new RecordingTask("first", startedTasks);
+        RecordingTask second = new RecordingTask("second", startedTasks);
+
+        queue.submit(Collections.singleton("key"), first);
+        queue.submit(Collections.singleton("key"), second);
+        assertEquals(Collections.singletonList("first"), startedTasks);
+
+        first.finish();
+        assertEquals(Arrays.asList("first", "second"), startedTasks);
+
+        second.finish();
+        assertEquals(0, queue.getBusyKeysCount());
+    }
+
+    @Test
+    public void tasksOfUnrelatedKeysRunConcurrently() {
+        KeyedTaskQueue queue = new KeyedTaskQueue();
+        List<String> startedTasks = new ArrayList<>();
+
+        queue.submit(Collections.singleton("a"), new RecordingTask("a", startedTasks));
+        queue.submit(Collections.singleton("b"), new RecordingTask("b", startedTasks));
+
+        assertEquals(Arrays.asList("a", "b"), startedTasks);
+        assertEquals(2, queue.getBusyKeysCount());
+    }
+
+    @Test
+    public void taskOfManyKeysWaitsForAllOfThem() {
+        KeyedTaskQueue queue = new KeyedTaskQueue();
+        List<String> startedTasks = new ArrayList<>();
+        RecordingTask a = new RecordingTask("a", startedTasks);
+        RecordingTask b = new RecordingTask("b", startedTasks);
+        RecordingTask ab = new RecordingTask("ab", startedTasks);
+        RecordingTask c = new RecordingTask("c", startedTasks);
+
+        queue.submit(Collections.singleton("a"), a);
+        queue.submit(Collections.singleton("b"), b);
+        queue.submit(Arrays.asList("a", "b"), ab);
+        queue.submit(Collections.singleton("c"), c);
+        assertEquals(Arrays.asList("a", "b", "c"), startedTasks);
+
+        b.finish();
+        assertEquals(Arrays.asList("a", "b", "c"), startedTasks);
+        a.finish();
+        assertEquals(Arrays.asList("a", "b", "c", "ab"), startedTasks);
+    }
+
+    @Test
+    public void finishingTwiceHasNoEffect() {
+        KeyedTaskQueue queue = new KeyedTaskQueue();
+        List<String> startedTasks = new ArrayList<>();
+        RecordingTask first = new RecordingTask("first", startedTasks);
+        RecordingTask second = new RecordingTask("second", startedTasks);
+        RecordingTask third = new RecordingTask("third", startedTasks);
+
+        queue.submit(Collections.singleton("key"), first);
+        queue.submit(Collections.singleton("key"), second);
+        queue.submit(Collections.singleton("key"), third);
+        first.finish();
+        first.finish();
+
+        assertEquals(Arrays.asList("first", "second"), startedTasks);
+    }
+}